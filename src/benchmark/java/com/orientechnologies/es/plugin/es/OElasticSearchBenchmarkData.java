@@ -0,0 +1,142 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.db.record.ridbag.ORidBag;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OSchema;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Data set of the benchmarks, created in an in-memory database. The content is generated from a fixed seed, so every run works on
+ * the same documents.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchBenchmarkData {
+  public static final String SMALL    = "small";
+  public static final String WIDE     = "wide";
+  public static final String RIDBAG   = "ridbag";
+  public static final String EMBEDDED = "embedded";
+
+  private static final long  SEED     = 20160913l;
+
+  private final ODatabaseDocumentTx db;
+  private final Random              random  = new Random(SEED);
+  private final List<OIdentifiable> targets = new ArrayList<OIdentifiable>();
+
+  public OElasticSearchBenchmarkData(final String dbName) {
+    db = new ODatabaseDocumentTx("memory:" + dbName);
+    if (db.exists())
+      db.open("admin", "admin").drop();
+    db.create();
+
+    // HIERARCHY USED BY THE INCLUDE/EXCLUDE RULES
+    final OSchema schema = db.getMetadata().getSchema();
+    final OClass entity = schema.createClass("Entity");
+    final OClass person = schema.createClass("Person", entity);
+    schema.createClass("Employee", person);
+    schema.createClass("Manager", schema.getClass("Employee"));
+    schema.createClass("Company", entity);
+    schema.createClass("Log");
+    schema.createClass("Target");
+  }
+
+  public ODatabaseDocumentTx getDatabase() {
+    return db;
+  }
+
+  public void drop() {
+    db.activateOnCurrentThread();
+    db.drop();
+  }
+
+  /**
+   * Creates and saves a document of the class with the given shape.
+   */
+  public ODocument createDocument(final String className, final String shape) {
+    final ODocument doc = new ODocument(className);
+    doc.field("name", "name" + random.nextInt(100000));
+    doc.field("surname", "surname" + random.nextInt(100000));
+    doc.field("age", random.nextInt(100));
+    doc.field("salary", random.nextDouble() * 100000);
+    doc.field("active", random.nextBoolean());
+    doc.field("createdOn", new Date(1400000000000l + random.nextInt(1000000000)));
+
+    if (WIDE.equals(shape)) {
+      for (int i = 0; i < 200; ++i)
+        doc.field("field" + i, i % 3 == 0 ? random.nextLong() : i % 3 == 1 ? "value" + random.nextInt() : random.nextDouble());
+
+    } else if (RIDBAG.equals(shape)) {
+      final ORidBag bag = new ORidBag();
+      for (OIdentifiable target : getTargets(10000))
+        bag.add(target);
+      doc.field("links", bag);
+
+    } else if (EMBEDDED.equals(shape)) {
+      final List<ODocument> addresses = new ArrayList<ODocument>();
+      for (int i = 0; i < 50; ++i)
+        addresses.add(new ODocument().fields("street", "street" + random.nextInt(1000), "city", "city" + random.nextInt(100),
+            "zip", random.nextInt(99999), "location", new ODocument().fields("lat", random.nextDouble(), "lon", random.nextDouble())));
+      doc.field("addresses", addresses, OType.EMBEDDEDLIST);
+
+      final Map<String, Object> attributes = new HashMap<String, Object>();
+      for (int i = 0; i < 50; ++i)
+        attributes.put("attr" + i, "value" + random.nextInt());
+      doc.field("attributes", attributes, OType.EMBEDDEDMAP);
+
+      final Set<String> tags = new HashSet<String>();
+      for (int i = 0; i < 20; ++i)
+        tags.add("tag" + random.nextInt(1000));
+      doc.field("tags", tags, OType.EMBEDDEDSET);
+    }
+
+    db.save(doc);
+    return doc;
+  }
+
+  /**
+   * Returns the configuration of a database replicated synchronously, with rules on the class hierarchy. It is parsed as the
+   * plugin does.
+   */
+  public static ODocument createConfiguration() {
+    return new ODocument().fromJSON("{\"replication\": {\"mode\": \"sync\"}, "
+        + "\"include\": {\"classes\": {\"Person\": [\"name\", \"surname\", \"age\"], \"Company\": []}}, "
+        + "\"exclude\": {\"classes\": [\"Log\"], \"clusters\": []}}", "noMap");
+  }
+
+  protected List<OIdentifiable> getTargets(final int count) {
+    while (targets.size() < count)
+      targets.add(db.save(new ODocument("Target").field("id", targets.size())));
+    return targets.subList(0, count);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembly of a bulk request of 1000 documents: rules, conversion to JSON and index requests, without sending it.
+ *
+ * @author Luca Garulli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OElasticSearchBulkBenchmark {
+  private static final int BULK_SIZE = 1000;
+
+  @Param({ OElasticSearchBenchmarkData.SMALL, OElasticSearchBenchmarkData.WIDE, OElasticSearchBenchmarkData.EMBEDDED })
+  public String shape;
+
+  private OElasticSearchBenchmarkData         data;
+  private OElasticSearchDatabaseConfiguration configuration;
+  private OElasticSearchDatabaseSync          sync;
+  private ODocument[]                         docs;
+
+  @Setup
+  public void setup() {
+    data = new OElasticSearchBenchmarkData("benchBulk");
+    configuration = new OElasticSearchDatabaseConfiguration("benchBulk", null, null,
+        OElasticSearchBenchmarkData.createConfiguration());
+    sync = new OElasticSearchDatabaseSync("benchBulk", configuration);
+
+    docs = new ODocument[BULK_SIZE];
+    for (int i = 0; i < BULK_SIZE; ++i)
+      // HALF OF THE DOCUMENTS WITH A PROJECTION
+      docs[i] = data.createDocument(i % 2 == 0 ? "Employee" : "Entity", shape);
+  }
+
+  @TearDown
+  public void tearDown() {
+    configuration.close();
+    data.drop();
+  }
+
+  @Benchmark
+  public BulkRequest assembleBulk() {
+    final BulkRequest bulk = new BulkRequest();
+    for (ODocument doc : docs) {
+      final IndexRequest request = sync.createIndexRequest(doc);
+      if (request != null)
+        bulk.add(request);
+    }
+    return bulk;
+  }
+}
@@ -0,0 +1,532 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.common.io.OFileUtils;
+import com.orientechnologies.common.io.OIOUtils;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.exception.OConcurrentModificationException;
+import com.orientechnologies.orient.core.exception.ORecordNotFoundException;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.serialization.OBase64Utils;
+import com.orientechnologies.orient.server.OServer;
+import com.orientechnologies.orient.server.network.protocol.http.ONetworkProtocolHttpAbstract;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test: starts an embedded Elastic Search node and an in-process OrientDB server with the plugin, drives a mix of
+ * creates, updates and deletes and then a full synchronization job. It reports the commit throughput and latency, the time for a
+ * change to be visible in Elastic Search, the synchronization throughput and the heap and GC activity of every phase.
+ * <p>
+ * The settings are passed as arguments in the form name=value:
+ * <ul>
+ * <li>dir: working directory, default target/load-test</li>
+ * <li>mode: replication mode (async, journal, sync), default async</li>
+ * <li>coalesce: coalescing window in milliseconds, default 0</li>
+ * <li>threads: number of writers, default 4</li>
+ * <li>preload: records created before the test, default 10000</li>
+ * <li>operations: operations executed by all the writers, default 100000</li>
+ * <li>mix: percentages of create, update and delete operations, default 50,40,10</li>
+ * <li>fields: string fields of every record, default 10</li>
+ * <li>lagSampling: one change every lagSampling is probed for visibility, default 100</li>
+ * <li>sync: executes a full synchronization job after the load, default true</li>
+ * <li>syncParallelism: workers of the synchronization job, default 4</li>
+ * <li>contentType: format of the documents (json, smile, cbor), default json</li>
+ * <li>compress: compresses the requests on the wire, default false</li>
+ * <li>output: report file, default target/load-test-result.json</li>
+ * </ul>
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchLoadTest {
+  private static final String DB_NAME    = "loadtest";
+  private static final String CLASS_NAME = "Item";
+  private static final String CLUSTER    = "orientdb-es-load";
+  private static final int    ES_PORT    = 9399;
+  private static final long   SEED       = 20160913l;
+
+  private final Map<String, String> settings;
+  private final File                directory;
+  private final AtomicLong          sequence = new AtomicLong();
+  private final List<ORID>          live     = new ArrayList<ORID>();
+  private Node                      esNode;
+  private OServer                   server;
+  private int                       httpPort;
+
+  public OElasticSearchLoadTest(final Map<String, String> settings) {
+    this.settings = settings;
+    this.directory = new File(getSetting("dir", "target/load-test")).getAbsoluteFile();
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final Map<String, String> settings = new HashMap<String, String>();
+    for (String arg : args) {
+      final int sep = arg.indexOf('=');
+      if (sep < 1)
+        throw new IllegalArgumentException("Invalid argument '" + arg + "', expected name=value");
+      settings.put(arg.substring(0, sep), arg.substring(sep + 1));
+    }
+
+    final ODocument report = new OElasticSearchLoadTest(settings).run();
+
+    final String json = report.toJSON("prettyPrint");
+    System.out.println(json);
+
+    final File output = new File(settings.containsKey("output") ? settings.get("output") : "target/load-test-result.json");
+    OIOUtils.writeFile(output, json);
+    System.out.println("Report saved in " + output.getAbsolutePath());
+    System.exit(0);
+  }
+
+  public ODocument run() throws Exception {
+    OFileUtils.deleteRecursively(directory);
+    directory.mkdirs();
+
+    final ODocument report = new ODocument();
+    report.field("settings", new ODocument().fromMap(new HashMap<String, Object>(settings)), OType.EMBEDDED);
+
+    startElasticSearch();
+    try {
+      startOrientDB();
+      try {
+        final ODatabaseDocumentTx db = createDatabase();
+        try {
+          preload(db);
+          report.field("load", runLoad(db), OType.EMBEDDED);
+          if (Boolean.parseBoolean(getSetting("sync", "true")))
+            report.field("sync", runSync(db), OType.EMBEDDED);
+          report.field("replication", getConfiguration().getMetrics().toDocument(), OType.EMBEDDED);
+        } finally {
+          db.activateOnCurrentThread();
+          db.close();
+        }
+      } finally {
+        server.shutdown();
+      }
+    } finally {
+      esNode.close();
+    }
+    return report;
+  }
+
+  protected void startElasticSearch() {
+    // LOOPBACK ONLY, NO HTTP AND NO DISCOVERY: THE PLUGIN CONNECTS WITH ITS TRANSPORT CLIENT
+    esNode = NodeBuilder.nodeBuilder().settings(
+        Settings.settingsBuilder().put("path.home", new File(directory, "es").getPath()).put("cluster.name", CLUSTER)
+            .put("network.host", "127.0.0.1").put("transport.tcp.port", ES_PORT).put("http.enabled", false)
+            .put("discovery.zen.ping.multicast.enabled", false).put("index.number_of_replicas", 0)).node();
+    esNode.client().admin().cluster().prepareHealth().setWaitForYellowStatus().get();
+  }
+
+  protected void startOrientDB() throws Exception {
+    final String config = "<orient-server><handlers>"
+        + "<handler class=\"com.orientechnologies.es.plugin.es.OElasticSearchPlugin\"><parameters>"
+        + "<parameter name=\"enabled\" value=\"true\"/><parameter name=\"syncParallelism\" value=\"" + getSetting(
+        "syncParallelism", "4") + "\"/></parameters></handler></handlers><network><protocols>"
+        + "<protocol name=\"http\" implementation=\"com.orientechnologies.orient.server.network.protocol.http.ONetworkProtocolHttpDb\"/>"
+        + "</protocols><listeners><listener protocol=\"http\" ip-address=\"127.0.0.1\" port-range=\"2480-2490\"/></listeners>"
+        + "</network><users><user name=\"root\" password=\"root\" resources=\"*\"/></users><properties>"
+        + "<entry name=\"server.database.path\" value=\"" + new File(directory, "databases").getPath() + "\"/>"
+        + "</properties></orient-server>";
+
+    server = new OServer(false);
+    server.startup(config);
+    server.activate();
+    httpPort = server.getListenerByProtocol(ONetworkProtocolHttpAbstract.class).getInboundAddr().getPort();
+  }
+
+  protected ODatabaseDocumentTx createDatabase() throws IOException {
+    // THE CONFIGURATION MUST EXIST BEFORE THE DATABASE, BECAUSE THE PLUGIN READS IT AT CREATION
+    final File dbDirectory = new File(server.getDatabaseDirectory() + DB_NAME);
+    dbDirectory.mkdirs();
+
+    final ODocument config = new ODocument();
+    config.field("es", new ODocument().fields("hosts", new String[] { "127.0.0.1:" + ES_PORT }, "clusterName", CLUSTER, "compress",
+        Boolean.parseBoolean(getSetting("compress", "false"))), OType.EMBEDDED);
+    config.field("contentType", getSetting("contentType", "json"));
+    config.field("replication", new ODocument().fields("mode", getSetting("mode", "async"), "coalesce",
+        new ODocument().field("window", getSetting("coalesce", 0))), OType.EMBEDDED);
+    OIOUtils.writeFile(new File(dbDirectory, "elastic-search-config.json"), config.toJSON());
+
+    final ODatabaseDocumentTx db = new ODatabaseDocumentTx("plocal:" + dbDirectory.getPath());
+    db.create();
+    db.getMetadata().getSchema().createClass(CLASS_NAME);
+    return db;
+  }
+
+  protected void preload(final ODatabaseDocumentTx db) throws InterruptedException {
+    final Random random = new Random(SEED);
+    final int fields = getSetting("fields", 10);
+    for (int i = getSetting("preload", 10000); i > 0; --i)
+      live.add(db.save(createRecord(new ODocument(CLASS_NAME), random, fields)).getIdentity());
+    waitForReplication();
+  }
+
+  /**
+   * Executes the operations with the writers and probes the visibility of a sample of the changes.
+   */
+  protected ODocument runLoad(final ODatabaseDocumentTx db) throws Exception {
+    final int threads = getSetting("threads", 4);
+    final int operations = getSetting("operations", 100000);
+    final int lagSampling = getSetting("lagSampling", 100);
+    final String[] mix = getSetting("mix", "50,40,10").split(",");
+    final int creates = Integer.parseInt(mix[0].trim());
+    final int updates = creates + Integer.parseInt(mix[1].trim());
+    final int fields = getSetting("fields", 10);
+
+    final OElasticSearchHistogram commitLatency = new OElasticSearchHistogram();
+    final OElasticSearchHistogram visibilityLag = new OElasticSearchHistogram();
+    final AtomicLong remaining = new AtomicLong(operations);
+    final AtomicLong conflicts = new AtomicLong();
+    final AtomicLong notVisible = new AtomicLong();
+    final BlockingQueue<long[]> samples = new LinkedBlockingQueue<long[]>();
+
+    final Prober prober = new Prober(samples, visibilityLag, notVisible);
+    prober.start();
+
+    final Phase phase = new Phase();
+    final Thread[] writers = new Thread[threads];
+    for (int t = 0; t < threads; ++t) {
+      final Random random = new Random(SEED + t + 1);
+      writers[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          final ODatabaseDocumentTx writerDb = new ODatabaseDocumentTx("plocal:" + server.getDatabaseDirectory() + DB_NAME)
+              .open("admin", "admin");
+          try {
+            while (remaining.decrementAndGet() >= 0) {
+              final int op = random.nextInt(100);
+              final long start = System.nanoTime();
+              try {
+                if (op < creates) {
+                  final ODocument doc = writerDb.save(createRecord(new ODocument(CLASS_NAME), random, fields));
+                  addLive(doc.getIdentity());
+                  sample(doc);
+                } else {
+                  final ORID rid = pickLive(random, op >= updates);
+                  if (rid == null)
+                    continue;
+                  if (op < updates) {
+                    final ODocument doc = writerDb.load(rid);
+                    if (doc == null)
+                      continue;
+                    sample(writerDb.<ODocument>save(createRecord(doc, random, fields)));
+                  } else
+                    writerDb.delete(rid);
+                }
+                commitLatency.record((System.nanoTime() - start) / 1000);
+              } catch (OConcurrentModificationException e) {
+                conflicts.incrementAndGet();
+              } catch (ORecordNotFoundException e) {
+                conflicts.incrementAndGet();
+              }
+            }
+          } finally {
+            writerDb.close();
+          }
+        }
+
+        private void sample(final ODocument doc) {
+          // THE LAG STARTS WHEN THE CHANGE IS COMMITTED
+          final long seq = doc.field("seq");
+          if (seq % lagSampling == 0)
+            samples.offer(
+                new long[] { doc.getIdentity().getClusterId(), doc.getIdentity().getClusterPosition(), seq, System.nanoTime() });
+        }
+      }, "Load test writer #" + t);
+      writers[t].start();
+    }
+
+    for (Thread w : writers)
+      w.join();
+    final long loadMillis = phase.getElapsed();
+
+    // THE REPLICATION IS ASYNCHRONOUS: WAIT FOR THE LAST CHANGES
+    waitForReplication();
+    final long drainMillis = phase.getElapsed() - loadMillis;
+    prober.close();
+
+    final ODocument doc = phase.toDocument();
+    doc.field("operations", operations);
+    doc.field("threads", threads);
+    doc.field("loadMillis", loadMillis);
+    doc.field("opsPerSecond", loadMillis > 0 ? commitLatency.getCount() * 1000 / loadMillis : 0);
+    doc.field("conflicts", conflicts.get());
+    doc.field("commitLatencyMicros", commitLatency.toDocument(), OType.EMBEDDED);
+    doc.field("replicationDrainMillis", drainMillis);
+    doc.field("visibilityLagMillis", visibilityLag.toDocument(), OType.EMBEDDED);
+    doc.field("notVisible", notVisible.get());
+    db.activateOnCurrentThread();
+    doc.field("records", db.countClass(CLASS_NAME));
+    doc.field("indexedRecords", countIndexed());
+    return doc;
+  }
+
+  /**
+   * Executes a full synchronization of the class through the HTTP command and waits for its end.
+   */
+  protected ODocument runSync(final ODatabaseDocumentTx db) throws Exception {
+    final Phase phase = new Phase();
+    ODocument job = http("POST", "essync/" + DB_NAME,
+        "{\"classes\":[\"" + CLASS_NAME + "\"],\"parallelism\":" + getSetting("syncParallelism", 4) + "}");
+    final String jobId = job.field("id");
+
+    while (OElasticSearchSyncJob.STATUS.RUNNING.toString().equals(job.field("status"))) {
+      Thread.sleep(500);
+      job = http("GET", "essync/" + DB_NAME + "/" + jobId, null);
+    }
+
+    final ODocument doc = phase.toDocument();
+    doc.field("job", job, OType.EMBEDDED);
+    db.activateOnCurrentThread();
+    doc.field("records", db.countClass(CLASS_NAME));
+    doc.field("indexedRecords", countIndexed());
+    return doc;
+  }
+
+  protected ODocument createRecord(final ODocument doc, final Random random, final int fields) {
+    doc.field("seq", sequence.incrementAndGet());
+    for (int i = 0; i < fields; ++i)
+      doc.field("field" + i, Long.toString(random.nextLong(), 36));
+    return doc;
+  }
+
+  protected void waitForReplication() throws InterruptedException {
+    final OElasticSearchReplicator replicator = getConfiguration().getReplicator();
+    while (true) {
+      final long pending = replicator.getQueueSize() + (replicator.getJournal() != null ?
+          replicator.getJournal().getPendingBytes() :
+          0);
+      if (pending == 0)
+        break;
+      Thread.sleep(50);
+    }
+    // THE LAST BULK REQUEST COULD BE STILL IN FLIGHT
+    Thread.sleep(getSetting("coalesce", 0) + 1000);
+  }
+
+  protected long countIndexed() {
+    final Client client = esNode.client();
+    client.admin().indices().prepareRefresh(DB_NAME).get();
+    return client.prepareCount(DB_NAME).setTypes(CLASS_NAME).get().getCount();
+  }
+
+  protected ODocument http(final String method, final String path, final String content) throws IOException {
+    final HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + httpPort + "/" + path).openConnection();
+    conn.setRequestMethod(method);
+    conn.setRequestProperty("Authorization", "Basic " + OBase64Utils.encodeBytes("admin:admin".getBytes("UTF-8")));
+    if (content != null) {
+      conn.setDoOutput(true);
+      final OutputStream out = conn.getOutputStream();
+      try {
+        out.write(content.getBytes("UTF-8"));
+      } finally {
+        out.close();
+      }
+    }
+
+    if (conn.getResponseCode() >= 400)
+      throw new IOException("HTTP " + method + " " + path + " returned " + conn.getResponseCode());
+
+    final InputStream in = conn.getInputStream();
+    try {
+      final ODocument response = new ODocument().fromJSON(OIOUtils.readStreamAsString(in));
+      // A SINGLE RESULT IS WRAPPED IN {"result":[...]}
+      final List<ODocument> result = response.field("result");
+      return result != null && !result.isEmpty() ? result.get(0) : response;
+    } finally {
+      in.close();
+    }
+  }
+
+  protected OElasticSearchDatabaseConfiguration getConfiguration() {
+    return server.getPluginByClass(OElasticSearchPlugin.class).getESClient(DB_NAME);
+  }
+
+  protected void addLive(final ORID rid) {
+    synchronized (live) {
+      live.add(rid);
+    }
+  }
+
+  /**
+   * Returns a random record, removing it from the live records if it is going to be deleted.
+   */
+  protected ORID pickLive(final Random random, final boolean remove) {
+    synchronized (live) {
+      if (live.isEmpty())
+        return null;
+      final int i = random.nextInt(live.size());
+      final ORID rid = live.get(i);
+      if (remove) {
+        live.set(i, live.get(live.size() - 1));
+        live.remove(live.size() - 1);
+      }
+      return rid;
+    }
+  }
+
+  protected String getSetting(final String name, final String defaultValue) {
+    return settings.containsKey(name) ? settings.get(name) : defaultValue;
+  }
+
+  protected int getSetting(final String name, final int defaultValue) {
+    return settings.containsKey(name) ? Integer.parseInt(settings.get(name)) : defaultValue;
+  }
+
+  /**
+   * Polls Elastic Search until the sampled changes are visible, measuring the time since they were committed.
+   */
+  private class Prober extends Thread {
+    private static final long TIMEOUT = 60000;
+
+    private final BlockingQueue<long[]>   samples;
+    private final OElasticSearchHistogram lag;
+    private final AtomicLong              notVisible;
+    private volatile boolean              running = true;
+
+    Prober(final BlockingQueue<long[]> samples, final OElasticSearchHistogram lag, final AtomicLong notVisible) {
+      super("Load test visibility prober");
+      this.samples = samples;
+      this.lag = lag;
+      this.notVisible = notVisible;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      final Client client = esNode.client();
+      while (running || !samples.isEmpty()) {
+        final long[] sample;
+        try {
+          sample = samples.poll(100, TimeUnit.MILLISECONDS);
+          if (sample == null)
+            continue;
+
+          final String id = "#" + sample[0] + ":" + sample[1];
+          while (true) {
+            // REAL-TIME GET: NO NEED TO REFRESH THE INDEX
+            final GetResponse response = client.prepareGet(DB_NAME, CLASS_NAME, id).get();
+            if (response.isExists() && ((Number) response.getSource().get("seq")).longValue() >= sample[2]) {
+              lag.record((System.nanoTime() - sample[3]) / 1000000);
+              break;
+            }
+            if ((System.nanoTime() - sample[3]) / 1000000 > TIMEOUT) {
+              // DELETED OR LOST
+              notVisible.incrementAndGet();
+              break;
+            }
+            Thread.sleep(1);
+          }
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+    }
+
+    void close() throws InterruptedException {
+      running = false;
+      join();
+    }
+  }
+
+  /**
+   * Elapsed time, heap and GC activity of a phase of the test.
+   */
+  private static class Phase {
+    private final long begin       = System.currentTimeMillis();
+    private final long gcCount     = getGCCount();
+    private final long gcTime      = getGCTime();
+    private final long heapUsed    = getHeapUsed();
+    private volatile long peakHeap = heapUsed;
+    private final Thread sampler;
+
+    Phase() {
+      sampler = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          while (!Thread.currentThread().isInterrupted()) {
+            peakHeap = Math.max(peakHeap, getHeapUsed());
+            try {
+              Thread.sleep(100);
+            } catch (InterruptedException e) {
+              break;
+            }
+          }
+        }
+      }, "Load test heap sampler");
+      sampler.setDaemon(true);
+      sampler.start();
+    }
+
+    long getElapsed() {
+      return System.currentTimeMillis() - begin;
+    }
+
+    ODocument toDocument() {
+      sampler.interrupt();
+      return new ODocument()
+          .fields("elapsedMillis", getElapsed(), "gcCount", getGCCount() - gcCount, "gcMillis", getGCTime() - gcTime, "heapBeforeMB",
+              heapUsed / 1048576, "heapPeakMB", peakHeap / 1048576, "heapAfterMB", getHeapUsed() / 1048576);
+    }
+
+    static long getHeapUsed() {
+      return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    static long getGCCount() {
+      long total = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        total += Math.max(0, gc.getCollectionCount());
+      return total;
+    }
+
+    static long getGCTime() {
+      long total = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        total += Math.max(0, gc.getCollectionTime());
+      return total;
+    }
+  }
+}
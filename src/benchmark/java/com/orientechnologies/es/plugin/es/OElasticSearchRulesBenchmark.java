@@ -0,0 +1,86 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluation of the include/exclude rules on records of a class hierarchy: the lookup of the compiled rules done for every change
+ * and the compilation done after a schema change.
+ *
+ * @author Luca Garulli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OElasticSearchRulesBenchmark {
+  private static final String[] CLASSES = { "Entity", "Person", "Employee", "Manager", "Company", "Log" };
+
+  private OElasticSearchBenchmarkData         data;
+  private OElasticSearchDatabaseConfiguration configuration;
+  private ODocument[]                         docs;
+  private int                                 next;
+
+  @Setup
+  public void setup() {
+    data = new OElasticSearchBenchmarkData("benchRules");
+    configuration = new OElasticSearchDatabaseConfiguration("benchRules", null, null,
+        OElasticSearchBenchmarkData.createConfiguration());
+
+    docs = new ODocument[CLASSES.length];
+    for (int i = 0; i < CLASSES.length; ++i)
+      docs[i] = data.createDocument(CLASSES[i], OElasticSearchBenchmarkData.SMALL);
+  }
+
+  @TearDown
+  public void tearDown() {
+    configuration.close();
+    data.drop();
+  }
+
+  @Benchmark
+  public Set<String> getSyncFields() {
+    next = (next + 1) % docs.length;
+    return configuration.getSyncFields(docs[next]);
+  }
+
+  @Benchmark
+  public void compileRules(final Blackhole blackhole) {
+    blackhole.consume(configuration.compileRules());
+  }
+}
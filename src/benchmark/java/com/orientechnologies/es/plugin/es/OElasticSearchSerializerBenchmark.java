@@ -0,0 +1,90 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of the documents to JSON, SMILE and CBOR, with all the fields and with a projection of 3 fields.
+ *
+ * @author Luca Garulli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OElasticSearchSerializerBenchmark {
+  @Param({ OElasticSearchBenchmarkData.SMALL, OElasticSearchBenchmarkData.WIDE, OElasticSearchBenchmarkData.RIDBAG,
+      OElasticSearchBenchmarkData.EMBEDDED })
+  public String shape;
+
+  @Param({ "JSON", "SMILE", "CBOR" })
+  public String contentType;
+
+  private OElasticSearchBenchmarkData data;
+  private OElasticSearchSerializer    serializer;
+  private ODocument                   doc;
+  private Set<String>                 projection;
+
+  @Setup
+  public void setup() {
+    data = new OElasticSearchBenchmarkData("benchSerializer");
+    serializer = new OElasticSearchSerializer(XContentType.valueOf(contentType));
+    doc = data.createDocument("Entity", shape);
+    projection = new HashSet<String>();
+    Collections.addAll(projection, "name", "age", "createdOn");
+  }
+
+  @TearDown
+  public void tearDown() {
+    data.drop();
+  }
+
+  @Benchmark
+  public byte[] serializeAllFields() throws IOException {
+    return serializer.serialize(doc, Collections.<String>emptySet());
+  }
+
+  @Benchmark
+  public byte[] serializeProjection() throws IOException {
+    return serializer.serialize(doc, projection);
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.command;
+
+import com.orientechnologies.es.plugin.es.OElasticSearchDatabaseConfiguration;
+import com.orientechnologies.es.plugin.es.OElasticSearchPlugin;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.server.network.protocol.http.OHttpRequest;
+import com.orientechnologies.orient.server.network.protocol.http.OHttpResponse;
+import com.orientechnologies.orient.server.network.protocol.http.OHttpUtils;
+import com.orientechnologies.orient.server.network.protocol.http.command.OServerCommandAuthenticatedDbAbstract;
+
+/**
+ * Returns the replication metrics of a database: GET essync-stats/&lt;database&gt;. A database not synchronized with Elastic Search
+ * is answered with 400 (bad request).
+ */
+public class OServerCommandESStats extends OServerCommandAuthenticatedDbAbstract {
+  private static final String[] NAMES = { "GET|essync-stats/*" };
+
+  private final OElasticSearchPlugin es;
+
+  public OServerCommandESStats(final OElasticSearchPlugin es) {
+    this.es = es;
+  }
+
+  @Override
+  public boolean execute(final OHttpRequest iRequest, OHttpResponse iResponse) throws Exception {
+    checkSyntax(iRequest.url, 2, "Syntax error: essync-stats/<database>");
+
+    iRequest.data.commandInfo = "Elastic Search Stats";
+
+    ODatabaseDocumentTx db = null;
+
+    try {
+      db = (ODatabaseDocumentTx) getProfiledDatabaseInstance(iRequest);
+
+      final OElasticSearchDatabaseConfiguration esConfig = es.getESClient(db.getName());
+      if (esConfig == null)
+        throw new IllegalArgumentException("Database " + db.getName() + " is not synchronized with Elastic Search");
+
+      final ODocument stats = esConfig.getMetrics().toDocument();
+      stats.field("searchCache", esConfig.getSearchCache().toDocument(), OType.EMBEDDED);
+      stats.field("projectionCache", esConfig.getProjections().toDocument(), OType.EMBEDDED);
+      iResponse.writeResult(stats, null, null);
+
+    } catch (IllegalArgumentException e) {
+      // DATABASE NOT CONFIGURED
+      iResponse.send(OHttpUtils.STATUS_BADREQ_CODE, OHttpUtils.STATUS_BADREQ_DESCRIPTION, OHttpUtils.CONTENT_TEXT_PLAIN,
+          e.getMessage(), null);
+
+    } finally {
+      if (db != null)
+        db.close();
+    }
+
+    return false;
+  }
+
+  @Override
+  public String[] getNames() {
+    return NAMES;
+  }
+}
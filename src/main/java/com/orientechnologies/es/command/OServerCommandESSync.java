@@ -19,25 +19,46 @@
  */
 package com.orientechnologies.es.command;
 
-import com.orientechnologies.common.collection.OIterableObject;
 import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.es.plugin.es.OElasticSearchDatabaseConfiguration;
+import com.orientechnologies.es.plugin.es.OElasticSearchDeltaSync;
+import com.orientechnologies.es.plugin.es.OElasticSearchParallelSync;
 import com.orientechnologies.es.plugin.es.OElasticSearchPlugin;
+import com.orientechnologies.es.plugin.es.OElasticSearchReconcile;
+import com.orientechnologies.es.plugin.es.OElasticSearchSyncJob;
 import com.orientechnologies.orient.core.command.OCommandExecutor;
 import com.orientechnologies.orient.core.command.OCommandManager;
 import com.orientechnologies.orient.core.command.OCommandRequestText;
-import com.orientechnologies.orient.core.db.document.ODatabaseDocument;
-import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
 import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.impl.local.paginated.wal.OLogSequenceNumber;
 import com.orientechnologies.orient.server.network.protocol.http.OHttpRequest;
 import com.orientechnologies.orient.server.network.protocol.http.OHttpResponse;
+import com.orientechnologies.orient.server.network.protocol.http.OHttpUtils;
 import com.orientechnologies.orient.server.network.protocol.http.command.OServerCommandAuthenticatedDbAbstract;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
+/**
+ * Executes the synchronizations as background jobs:
+ * <ul>
+ * <li>POST essync/&lt;database&gt; starts a job and returns its id. With {"delta":true} the job synchronizes only the records
+ * changed since the last synchronization of the entire database. With {"classes":[...],"rebuild":true} the classes are
+ * rebuilt in new indexes, swapped with the current ones at the end (class layout only). With {"reconcile":true} the job compares
+ * the digests of ranges of records between the database and the indexes and repairs only the records that differ</li>
+ * <li>POST essync/&lt;database&gt;/&lt;job&gt; resumes a stopped job from its checkpoint</li>
+ * <li>GET essync/&lt;database&gt;[/&lt;job&gt;] returns the progress of the jobs</li>
+ * <li>DELETE essync/&lt;database&gt;/&lt;job&gt; cancels a running job</li>
+ * </ul>
+ * Wrong parameters and unknown jobs are answered with 400 (bad request).
+ */
 public class OServerCommandESSync extends OServerCommandAuthenticatedDbAbstract {
-  private static final String[] NAMES = { "GET|essync/*", "POST|essync/*" };
+  private static final String[] NAMES = { "GET|essync/*", "POST|essync/*", "DELETE|essync/*" };
 
   private final OElasticSearchPlugin es;
 
@@ -47,89 +68,243 @@ public class OServerCommandESSync extends OServerCommandAuthenticatedDbAbstract
 
   @Override
   public boolean execute(final OHttpRequest iRequest, OHttpResponse iResponse) throws Exception {
+    final String[] urlParts = checkSyntax(iRequest.url, 2, "Syntax error: essync/<database>[/<job>]");
+    final String jobId = urlParts.length > 2 ? urlParts[2] : null;
+
+    iRequest.data.commandInfo = "Elastic Search Sync";
+
+    ODatabaseDocumentTx db = null;
+
+    try {
+      db = (ODatabaseDocumentTx) getProfiledDatabaseInstance(iRequest);
+
+      if (iRequest.httpMethod.equalsIgnoreCase("GET")) {
+        // PROGRESS
+        if (jobId != null) {
+          final OElasticSearchSyncJob job = getJob(db, jobId);
+          iResponse.writeResult(job.toDocument(false), null, null);
+        } else {
+          final List<ODocument> jobs = new ArrayList<ODocument>();
+          for (OElasticSearchSyncJob job : es.getSyncJobs(db.getName()))
+            jobs.add(job.toDocument(false));
+          iResponse.writeRecords(jobs);
+        }
+
+      } else if (iRequest.httpMethod.equalsIgnoreCase("DELETE")) {
+        // CANCEL
+        if (jobId == null)
+          throw new IllegalArgumentException("Syntax error: essync/<database>/<job>");
+
+        final OElasticSearchSyncJob job = getJob(db, jobId);
+        job.cancel();
+        OLogManager.instance().info(this, "ES plugin: cancelled synchronization job %s", jobId);
+        iResponse.writeResult(job.toDocument(false), null, null);
+
+      } else if (jobId != null) {
+        // RESUME
+        iRequest.data.commandDetail = "resume: " + jobId;
+        final OElasticSearchSyncJob job = es.startSyncJob(getJob(db, jobId), db);
+        iResponse.writeResult(job.toDocument(false), null, null);
+
+      } else {
+        // START
+        final OElasticSearchSyncJob job = es.startSyncJob(createJob(iRequest, db), db);
+        OLogManager.instance().info(this, "ES plugin: started synchronization job %s", job.getId());
+        iResponse.writeResult(job.toDocument(false), null, null);
+      }
 
-    OLogManager.instance().info(this, "ES sync commmand received");
-    final String[] urlParts = checkSyntax(iRequest.url, 1, "Syntax error: essync/<database>");
+    } catch (IllegalArgumentException e) {
+      // WRONG PARAMETERS OR JOB ID
+      iResponse.send(OHttpUtils.STATUS_BADREQ_CODE, OHttpUtils.STATUS_BADREQ_DESCRIPTION, OHttpUtils.CONTENT_TEXT_PLAIN,
+          e.getMessage(), null);
 
+    } finally {
+      if (db != null)
+        db.close();
+    }
+
+    return false;
+  }
+
+  protected OElasticSearchSyncJob createJob(final OHttpRequest iRequest, final ODatabaseDocumentTx db) {
     String command = null;
+    boolean delta = false;
+    boolean rebuild = false;
+    boolean reconcile = false;
+    boolean bulkLoad = false;
     List<String> classes = null;
     List<String> clusters = null;
+    int parallelism = es.getSyncParallelism();
+    long rangeSize = OElasticSearchParallelSync.DEFAULT_RANGE_SIZE;
+    ODocument doc = new ODocument();
 
     if (iRequest.content != null && !iRequest.content.isEmpty()) {
       // CONTENT REPLACES TEXT
       if (iRequest.content.startsWith("{")) {
         // JSON PAYLOAD
-        final ODocument doc = new ODocument().fromJSON(iRequest.content);
+        doc = new ODocument().fromJSON(iRequest.content);
         command = doc.field("command");
+        delta = Boolean.TRUE.equals(doc.field("delta"));
+        rebuild = Boolean.TRUE.equals(doc.field("rebuild"));
+        reconcile = Boolean.TRUE.equals(doc.field("reconcile"));
+        bulkLoad = Boolean.TRUE.equals(doc.field("bulkLoad"));
         clusters = doc.field("clusters");
         classes = doc.field("classes");
+        parallelism = (int) getPositive(doc, "parallelism", parallelism, Integer.MAX_VALUE);
+        rangeSize = getPositive(doc, "rangeSize", rangeSize, Long.MAX_VALUE);
       }
     }
 
-    iRequest.data.commandInfo = "Elastic Search Sync";
-    iRequest.data.commandDetail = command != null ?
-        "command: " + command :
-        classes != null ? "classes: " + classes.toString() : clusters != null ? "clusters: " + clusters.toString() : "database";
-
-    ODatabaseDocument db = null;
+    // EVERY MODE ACCEPTS ONLY ITS OWN PARAMETERS
+    if (delta)
+      checkNotSet(doc, "delta", "command", "classes", "clusters", "rebuild", "reconcile", "bulkLoad", "parallelism", "rangeSize");
+    else if (command != null)
+      checkNotSet(doc, "command", "classes", "clusters", "rebuild", "reconcile", "bulkLoad", "parallelism", "rangeSize");
+    else if (reconcile)
+      checkNotSet(doc, "reconcile", "rebuild", "bulkLoad");
+    if (classes != null)
+      checkNotSet(doc, "classes", "clusters");
 
-    Object response;
+    if (delta) {
+      // CHANGES SINCE THE HIGH-WATER MARK: THEY ARE COLLECTED BY THE JOB
+      iRequest.data.commandDetail = "delta";
+      return new OElasticSearchSyncJob(es, db, null, new ArrayList<OElasticSearchParallelSync.Range>(), 1, 0, true, null);
+    }
 
-    try {
-      db = getProfiledDatabaseInstance(iRequest);
+    iRequest.data.commandDetail = (reconcile ? "reconcile " : bulkLoad ? "bulk load " : "") + (command != null ?
+        "command: " + command :
+        classes != null ? "classes: " + classes.toString() : clusters != null ? "clusters: " + clusters.toString() : "database");
 
-      long syncItems = 0;
+    if (command != null) {
+      // COMMAND: CHECK THE SYNTAX BEFORE STARTING THE JOB
+      final OCommandRequestText cmd = (OCommandRequestText) OCommandManager.instance().getRequester("sql");
+      cmd.setText(command);
 
-      OLogManager.instance().info(this, "ES plugin: synchronizing records", syncItems);
+      final OCommandExecutor executor = OCommandManager.instance().getExecutor(cmd);
+      executor.setContext(cmd.getContext());
+      executor.setProgressListener(cmd.getProgressListener());
+      executor.parse(cmd);
 
-      if (command != null) {
-        // COMMAND
-        final OCommandRequestText cmd = (OCommandRequestText) OCommandManager.instance().getRequester("sql");
-        cmd.setText(command);
+      return new OElasticSearchSyncJob(es, db, command, new ArrayList<OElasticSearchParallelSync.Range>(), 1, 0);
+    }
 
-        final OCommandExecutor executor = OCommandManager.instance().getExecutor(cmd);
-        executor.setContext(cmd.getContext());
-        executor.setProgressListener(cmd.getProgressListener());
-        executor.parse(cmd);
+    if (rebuild && (classes == null
+        || es.getESClient(db.getName()).getLayout() != OElasticSearchDatabaseConfiguration.LAYOUT.CLASS))
+      throw new IllegalArgumentException("Rebuild requires a list of classes and the 'class' layout");
 
-        final Object result = db.command(cmd).execute();
+    final Set<Integer> clusterIds = new LinkedHashSet<Integer>();
+    final Set<String> rebuildClasses = new LinkedHashSet<String>();
+    OLogSequenceNumber lsn = null;
 
-        if (result instanceof OIdentifiable)
-          syncItems += es.getDatabase(db.getName()).syncBatch(new OIterableObject<OIdentifiable>((OIdentifiable) result));
-        else if (result instanceof Collection)
-          syncItems += es.getDatabase(db.getName()).syncBatch(((Collection) result).iterator());
-        else
-          throw new IllegalArgumentException("The result of command '" + cmd + "' cannot be synchronized");
+    if (classes != null) {
+      // CLASSES
+      for (String cl : classes) {
+        final OClass cls = db.getMetadata().getImmutableSchemaSnapshot().getClass(cl);
+        if (cls == null)
+          throw new IllegalArgumentException("Class '" + cl + "' not found");
+        for (int id : cls.getPolymorphicClusterIds())
+          clusterIds.add(id);
 
-      } else if (classes != null) {
-        // CLASSES
-        for (String cl : classes) {
-          syncItems += es.getDatabase(db.getName()).syncBatch(db.browseClass(cl));
+        if (rebuild) {
+          // EVERY SUBCLASS HAS ITS OWN INDEX
+          rebuildClasses.add(cls.getName());
+          for (OClass sub : cls.getAllSubclasses())
+            rebuildClasses.add(sub.getName());
         }
+      }
 
-      } else if (clusters != null) {
-        // CLUSTERS
-        for (String cl : clusters) {
-          syncItems += es.getDatabase(db.getName()).syncBatch(db.browseCluster(cl));
-        }
-      } else {
-        // ENTIRE DATABASE BASED ON CFG
-        clusters = new ArrayList<String>(db.getClusterNames());
-        for (String cl : clusters) {
-          syncItems += es.getDatabase(db.getName()).syncBatch(db.browseCluster(cl));
-        }
+    } else if (clusters != null) {
+      // CLUSTERS
+      for (String cl : clusters) {
+        final int id = db.getClusterIdByName(cl);
+        if (id < 0)
+          throw new IllegalArgumentException("Cluster '" + cl + "' not found");
+        clusterIds.add(id);
       }
 
-      OLogManager.instance().info(this, "ES plugin: synchronized %d records", syncItems);
+    } else {
+      // ENTIRE DATABASE BASED ON CFG
+      for (String cl : db.getClusterNames())
+        clusterIds.add(db.getClusterIdByName(cl));
 
-      iResponse.writeResult("Synchronized " + syncItems + " records", null, null);
+      // THE CHANGES AFTER THIS POSITION WILL BE SYNCHRONIZED BY THE NEXT DELTA
+      if (!reconcile)
+        lsn = OElasticSearchDeltaSync.getCurrentLSN(db);
+    }
 
-    } finally {
-      if (db != null)
-        db.close();
+    final OElasticSearchDatabaseConfiguration esConfig = es.getESClient(db.getName());
+    if (esConfig.getOwnership() != null) {
+      if (rebuild)
+        throw new IllegalArgumentException("Rebuild is not supported with the 'owner' distributed mode");
+
+      // DISTRIBUTED: EVERY SERVER SYNCHRONIZES THE CLUSTERS IT OWNS
+      for (Iterator<Integer> it = clusterIds.iterator(); it.hasNext(); )
+        if (!esConfig.isOwner(it.next()))
+          it.remove();
     }
 
-    return false;
+    long total = 0;
+    for (int id : clusterIds)
+      total += db.countClusterElements(id);
+
+    if (reconcile)
+      return OElasticSearchSyncJob
+          .createReconcile(es, db, OElasticSearchReconcile.split(db, clusterIds, rangeSize), parallelism, total);
+
+    final OElasticSearchSyncJob job;
+    if (rebuild)
+      job = new OElasticSearchSyncJob(es, db, OElasticSearchParallelSync.split(db, clusterIds, rangeSize), parallelism, total,
+          rebuildClasses);
+    else
+      job = new OElasticSearchSyncJob(es, db, null, OElasticSearchParallelSync.split(db, clusterIds, rangeSize), parallelism, total,
+          false, lsn);
+    job.setBulkLoad(bulkLoad);
+    return job;
+  }
+
+  /**
+   * Rejects the parameters that don't apply to the mode. A boolean parameter set to false is ignored.
+   */
+  protected static void checkNotSet(final ODocument doc, final String mode, final String... parameters) {
+    for (String p : parameters) {
+      final Object value = doc.field(p);
+      if (value != null && !Boolean.FALSE.equals(value))
+        throw new IllegalArgumentException("Parameter '" + p + "' cannot be used with '" + mode + "'");
+    }
+  }
+
+  /**
+   * Returns the value of a parameter that must be an integer between 1 and max, or the default value if not set.
+   */
+  protected static long getPositive(final ODocument doc, final String parameter, final long defaultValue, final long max) {
+    final Object value = doc.field(parameter);
+    if (value == null)
+      return defaultValue;
+
+    long result = 0;
+    if (value instanceof Number) {
+      if (((Number) value).doubleValue() == ((Number) value).longValue())
+        result = ((Number) value).longValue();
+    } else
+      try {
+        result = Long.parseLong(value.toString().trim());
+      } catch (NumberFormatException e) {
+        // REJECTED BELOW
+      }
+
+    if (result < 1 || result > max)
+      throw new IllegalArgumentException("Parameter '" + parameter + "' must be an integer between 1 and " + max + ": " + value);
+    return result;
+  }
+
+  protected OElasticSearchSyncJob getJob(final ODatabaseDocumentTx db, final String jobId) throws Exception {
+    if (!OElasticSearchSyncJob.isValidId(jobId))
+      throw new IllegalArgumentException("Invalid synchronization job id: " + jobId);
+
+    final OElasticSearchSyncJob job = es.getSyncJob(db.getName(), jobId);
+    if (job == null)
+      throw new IllegalArgumentException("Synchronization job " + jobId + " not found");
+    return job;
   }
 
   @Override
@@ -0,0 +1,133 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.function;
+
+import com.orientechnologies.common.collection.OMultiCollectionIterator;
+import com.orientechnologies.es.plugin.es.OElasticSearchDatabaseConfiguration;
+import com.orientechnologies.es.plugin.es.OElasticSearchPlugin;
+import com.orientechnologies.es.plugin.es.OElasticSearchSearchCache;
+import com.orientechnologies.es.plugin.es.OElasticSearchSearchResult;
+import com.orientechnologies.orient.core.command.OCommandContext;
+import com.orientechnologies.orient.core.db.ODatabaseDocumentInternal;
+import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.exception.OCommandExecutionException;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.sql.functions.OSQLFunctionAbstract;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Full-text search on Elastic Search: returns the records of a class (and its subclasses) matching a query, in order of relevance.
+ * The query is a query string ("name:Jay AND surname:Miner") or the JSON of an Elastic Search query. Usage:
+ * <p>
+ * <code>select expand(es_search('Person', 'name:Jay')) or select from Person where @rid in es_search('Person', 'Jay', 100)</code>
+ * <p>
+ * The records are fetched page by page while they are browsed. Small results are cached until a record of their classes changes.
+ */
+public class OSQLFunctionESSearch extends OSQLFunctionAbstract {
+  public static final String NAME = "es_search";
+
+  private final OElasticSearchPlugin es;
+
+  public OSQLFunctionESSearch(final OElasticSearchPlugin es) {
+    super(NAME, 2, 3);
+    this.es = es;
+  }
+
+  @Override
+  public Object execute(final Object iThis, final OIdentifiable iCurrentRecord, final Object iCurrentResult, final Object[] iParams,
+      final OCommandContext iContext) {
+    final ODatabaseDocumentInternal db = ODatabaseRecordThreadLocal.INSTANCE.get();
+
+    final OElasticSearchDatabaseConfiguration esConfig = es.getESClient(db.getName());
+    if (esConfig == null)
+      throw new OCommandExecutionException("Database " + db.getName() + " is not synchronized with Elastic Search");
+
+    final String className = iParams[0] != null && !"*".equals(iParams[0].toString()) ? iParams[0].toString() : null;
+    if (iParams[1] == null)
+      throw new OCommandExecutionException("Syntax error: " + getSyntax());
+    final String query = iParams[1].toString().trim();
+    final int limit = iParams.length > 2 && iParams[2] != null ? getLimit(iParams[2]) : -1;
+
+    // THE RECORDS OF THE SUBCLASSES ARE INDEXED WITH THEIR CLASS AS TYPE
+    final List<String> classes;
+    final String[] types;
+    final String[] indexes;
+    if (className != null) {
+      final OClass cls = db.getMetadata().getImmutableSchemaSnapshot().getClass(className);
+      if (cls == null)
+        throw new OCommandExecutionException("Class '" + className + "' not found");
+
+      classes = new ArrayList<String>();
+      classes.add(cls.getName());
+      for (OClass sub : cls.getAllSubclasses())
+        classes.add(sub.getName());
+
+      types = classes.toArray(new String[classes.size()]);
+      if (esConfig.getLayout() == OElasticSearchDatabaseConfiguration.LAYOUT.CLASS) {
+        indexes = new String[types.length];
+        for (int i = 0; i < types.length; ++i)
+          indexes[i] = esConfig.getClassAlias(types[i]);
+      } else
+        indexes = new String[] { esConfig.getDatabaseIndexName() };
+    } else {
+      classes = null;
+      types = new String[0];
+      indexes = new String[] { esConfig.getDatabaseIndexName() };
+    }
+
+    final OElasticSearchSearchCache cache = esConfig.getSearchCache();
+    final String cacheKey = classes + "|" + limit + "|" + query;
+    if (cache.isEnabled()) {
+      final List<OIdentifiable> cached = cache.get(cacheKey);
+      if (cached != null)
+        return cached;
+    }
+
+    QueryBuilder esQuery = query.startsWith("{") ? QueryBuilders.wrapperQuery(query) : QueryBuilders.queryStringQuery(query);
+    if (classes == null && esConfig.getLinkPolicies().hasChildPolicies())
+      // NOT THE CHILD DOCUMENTS OF THE LINKS
+      esQuery = QueryBuilders.boolQuery().must(esQuery).mustNot(QueryBuilders.existsQuery("@parent"));
+
+    // MULTI VALUE FOR EXPAND() AND IN: THE PAGES ARE FETCHED WHILE IT IS BROWSED
+    return new OMultiCollectionIterator<OIdentifiable>().add(
+        new OElasticSearchSearchResult(esConfig.getClient(), indexes, types, esQuery, limit, esConfig.getSearchPageSize(), cache,
+            cacheKey, classes));
+  }
+
+  @Override
+  public String getSyntax() {
+    return "es_search(<class>, <query> [, <limit>])";
+  }
+
+  protected int getLimit(final Object value) {
+    if (value instanceof Number)
+      return ((Number) value).intValue();
+    try {
+      return Integer.parseInt(value.toString().trim());
+    } catch (NumberFormatException e) {
+      throw new OCommandExecutionException("Syntax error: " + getSyntax() + ", limit '" + value + "' is not a number");
+    }
+  }
+}
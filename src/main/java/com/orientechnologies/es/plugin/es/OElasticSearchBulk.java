@@ -0,0 +1,139 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.common.exception.OException;
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.orient.core.exception.ODatabaseException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+
+/**
+ * Buffers the requests of a thread and sends them through the background lane of the bulk controller of the database, with the
+ * number of actions decided by the controller. The requests are sent on the caller thread, so the caller is paused while Elastic
+ * Search is under pressure and the listener is called before add() returns. Without a listener the failures are logged and counted in
+ * the metrics: the failed items are returned by getFailed() and a bulk request that fails as a whole throws an exception. Not thread
+ * safe.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchBulk {
+  private final String                       dbName;
+  private final OElasticSearchBulkController controller;
+  private final OElasticSearchMetrics        metrics;
+  private final BulkProcessor.Listener       listener;
+  private BulkRequest                        request = new BulkRequest();
+  private long                               executionId;
+  private long                               failed;
+
+  public OElasticSearchBulk(final String dbName, final OElasticSearchBulkController controller, final OElasticSearchMetrics metrics,
+      final BulkProcessor.Listener listener) {
+    this.dbName = dbName;
+    this.controller = controller;
+    this.metrics = metrics;
+    this.listener = listener;
+  }
+
+  public OElasticSearchBulk add(final ActionRequest request) {
+    this.request.add(request);
+    if (this.request.numberOfActions() >= controller.getBatchActions()
+        || this.request.estimatedSizeInBytes() >= controller.getMaxBytes())
+      flush();
+    return this;
+  }
+
+  /**
+   * Sends the buffered requests.
+   */
+  public void flush() {
+    if (request.numberOfActions() == 0)
+      return;
+
+    final BulkRequest toSend = request;
+    request = new BulkRequest();
+
+    final long id = ++executionId;
+    if (listener != null)
+      listener.beforeBulk(id, toSend);
+
+    final BulkResponse response;
+    try {
+      response = controller.execute(toSend);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      onFailure(id, toSend, e);
+      return;
+    } catch (RuntimeException e) {
+      onFailure(id, toSend, e);
+      return;
+    }
+
+    if (listener != null) {
+      listener.afterBulk(id, toSend, response);
+      return;
+    }
+
+    if (response.hasFailures()) {
+      int failures = 0;
+      for (BulkItemResponse item : response.getItems())
+        if (item.isFailed()) {
+          failures++;
+          metrics.onItemFailure(item.getType(), item.getFailureMessage());
+        }
+      failed += failures;
+
+      OLogManager.instance().warn(this, "ES plugin: %d of %d requests to database '%s' failed: %s", failures,
+          toSend.numberOfActions(), dbName, response.buildFailureMessage());
+    }
+  }
+
+  /**
+   * Returns the number of requests failed, when the bulk has no listener.
+   */
+  public long getFailed() {
+    return failed;
+  }
+
+  protected void onFailure(final long id, final BulkRequest request, final Throwable e) {
+    if (listener != null) {
+      listener.afterBulk(id, request, e);
+      return;
+    }
+
+    final int actions = request.numberOfActions();
+    failed += actions;
+    for (int i = 0; i < actions; ++i)
+      metrics.onItemFailure(null, e.toString());
+
+    OLogManager.instance().error(this, "ES plugin: error on sending %d requests to database '%s'", e, actions, dbName);
+    throw OException.wrapException(
+        new ODatabaseException("Error on sending " + actions + " requests to Elastic Search for database " + dbName), e);
+  }
+
+  /**
+   * Sends the buffered requests.
+   */
+  public void close() {
+    flush();
+  }
+}
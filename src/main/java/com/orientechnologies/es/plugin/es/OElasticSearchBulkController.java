@@ -0,0 +1,347 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.rest.RestStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.orientechnologies.es.plugin.es.OElasticSearchDatabaseConfiguration.getSetting;
+
+/**
+ * Executes the bulk requests of a database adapting their size and the number of concurrent requests to the latency of Elastic
+ * Search: they grow while the latency is under the target and shrink when it is over or when Elastic Search rejects items because
+ * its bulk queue is full. The rejected items are retried with exponential backoff and jitter. When all the concurrent requests
+ * are in flight, the callers wait, so the sources (iterators and queues) are paused until Elastic Search catches up.
+ * <p>
+ * The requests are scheduled in two lanes: the live changes of the replication and the background work of the synchronization
+ * jobs. When both lanes are waiting, the free slots are shared according to the weights of the lanes, so a big synchronization
+ * doesn't delay the live changes. Every lane can also have its own concurrency cap and rate limits.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchBulkController {
+  public enum LANE {
+    LIVE, BACKGROUND
+  }
+
+  /**
+   * Scheduling state of a lane. The lanes are served by stride scheduling: every request granted advances the pass of its lane by
+   * 1/weight and, between the waiting lanes, the one with the lowest pass gets the next slot.
+   */
+  protected static class Lane {
+    private final String     name;
+    private final int        weight;
+    private final int        maxConcurrency;
+    private final double     maxDocsPerSecond;
+    private final double     maxBytesPerSecond;
+    private final AtomicLong sent          = new AtomicLong();
+    private final AtomicLong limitedMillis = new AtomicLong();
+    private int              inFlight;
+    private int              waiting;
+    private double           pass;
+    private long             nextFree;
+
+    public Lane(final String name, final ODocument configuration, final int defaultWeight) {
+      this.name = name;
+      this.weight = Math.max(1, getSetting(configuration, "bulk.lanes." + name + ".weight", defaultWeight));
+      this.maxConcurrency = getSetting(configuration, "bulk.lanes." + name + ".maxConcurrency", 0);
+      this.maxDocsPerSecond = getSetting(configuration, "bulk.lanes." + name + ".maxDocsPerSecond", 0);
+      this.maxBytesPerSecond = getSetting(configuration, "bulk.lanes." + name + ".maxMBPerSecond", 0) * 1024d * 1024d;
+    }
+
+    /**
+     * Waits until the rate limits of the lane allow to send the actions. Every request reserves the time it takes at the maximum
+     * rate, starting from the end of the previous reservation.
+     */
+    protected void limit(final int actions, final long bytes) throws InterruptedException {
+      if (maxDocsPerSecond <= 0 && maxBytesPerSecond <= 0)
+        return;
+
+      double seconds = 0;
+      if (maxDocsPerSecond > 0)
+        seconds = actions / maxDocsPerSecond;
+      if (maxBytesPerSecond > 0)
+        seconds = Math.max(seconds, bytes / maxBytesPerSecond);
+
+      final long delay;
+      synchronized (this) {
+        final long now = System.nanoTime();
+        if (nextFree - now < 0)
+          nextFree = now;
+        delay = nextFree - now;
+        nextFree += (long) (seconds * 1000000000d);
+      }
+
+      if (delay > 0) {
+        limitedMillis.addAndGet(delay / 1000000);
+        Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+      }
+    }
+
+    protected boolean isFull() {
+      return maxConcurrency > 0 && inFlight >= maxConcurrency;
+    }
+
+    public ODocument toDocument() {
+      return new ODocument().fields("weight", weight, "inFlight", inFlight, "waiting", waiting, "sent", sent.get(), "limitedMillis",
+          limitedMillis.get());
+    }
+  }
+
+  private final String     dbName;
+  private final Client     client;
+  private final int        minActions;
+  private final int        maxActions;
+  private final long       maxBytes;
+  private final long       targetLatency;
+  private final int        maxConcurrency;
+  private final int        maxRetries;
+  private final long       retryDelay;
+  private final Random     random    = new Random();
+  private final Lane[]     lanes;
+
+  private volatile int     batchActions;
+  private int              concurrency;
+  private int              inFlight;
+
+  private final AtomicLong retried   = new AtomicLong();
+  private final AtomicLong rejected  = new AtomicLong();
+  private final AtomicLong throttled = new AtomicLong();
+
+  public OElasticSearchBulkController(final String dbName, final Client client, final ODocument configuration) {
+    this.dbName = dbName;
+    this.client = client;
+    this.minActions = getSetting(configuration, "bulk.minActions", 100);
+    this.maxActions = getSetting(configuration, "bulk.maxActions", 10000);
+    this.maxBytes = getSetting(configuration, "bulk.maxSizeMB", 10) * 1024l * 1024l;
+    this.targetLatency = getSetting(configuration, "bulk.targetLatency", 1000);
+    this.maxConcurrency = getSetting(configuration, "bulk.maxConcurrency", 4);
+    this.maxRetries = getSetting(configuration, "bulk.maxRetries", 8);
+    this.retryDelay = getSetting(configuration, "bulk.retryDelay", 100);
+    this.batchActions = Math.max(minActions, Math.min(maxActions, 1000));
+    this.concurrency = 1;
+    this.lanes = new Lane[] { new Lane("live", configuration, 4), new Lane("background", configuration, 1) };
+  }
+
+  /**
+   * Returns the current number of actions per bulk request.
+   */
+  public int getBatchActions() {
+    return batchActions;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public synchronized int getConcurrency() {
+    return concurrency;
+  }
+
+  public long getRetried() {
+    return retried.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public long getThrottled() {
+    return throttled.get();
+  }
+
+  public BulkResponse execute(final BulkRequest request) throws InterruptedException {
+    return execute(request, LANE.BACKGROUND, true);
+  }
+
+  /**
+   * Executes the bulk request in a lane. If throttled is true, it waits for the rate limits of the lane and for a free slot, granted
+   * to the lanes according to their weights. The items rejected by Elastic Search are retried and the returned response contains
+   * the result of the last attempt of every item.
+   */
+  public BulkResponse execute(final BulkRequest request, final LANE laneType, final boolean throttled) throws InterruptedException {
+    final Lane lane = lanes[laneType.ordinal()];
+    if (throttled) {
+      lane.limit(request.numberOfActions(), request.estimatedSizeInBytes());
+      acquire(lane);
+    }
+    try {
+      final List<ActionRequest> requests = request.requests();
+      final BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+      final long begin = System.currentTimeMillis();
+
+      // POSITIONS OF THE REQUESTS TO SEND IN THE ORIGINAL REQUEST
+      List<Integer> pending = null;
+      BulkRequest current = request;
+
+      for (int attempt = 0; ; ++attempt) {
+        final long start = System.currentTimeMillis();
+        final BulkResponse response;
+        try {
+          response = client.bulk(current).actionGet();
+        } catch (RuntimeException e) {
+          // THE WHOLE REQUEST FAILED (NO NODE AVAILABLE, REJECTED, ...)
+          if (attempt >= maxRetries)
+            throw e;
+          adapt(System.currentTimeMillis() - start, true);
+          backoff(attempt);
+          continue;
+        }
+
+        final List<Integer> rejectedItems = new ArrayList<Integer>();
+        for (BulkItemResponse item : response.getItems()) {
+          final int position = pending != null ? pending.get(item.getItemId()) : item.getItemId();
+          // THE ITEMS OF A RETRY ARE NUMBERED IN THE SMALLER REQUEST: REPORT THEM WITH THEIR POSITION IN THE ORIGINAL ONE
+          items[position] = position == item.getItemId() ? item : renumber(item, position);
+          if (item.isFailed() && isRejection(item))
+            rejectedItems.add(position);
+        }
+
+        adapt(System.currentTimeMillis() - start, !rejectedItems.isEmpty());
+
+        if (rejectedItems.isEmpty() || attempt >= maxRetries)
+          break;
+
+        // RETRY THE REJECTED ITEMS ONLY
+        rejected.addAndGet(rejectedItems.size());
+        retried.incrementAndGet();
+        backoff(attempt);
+
+        pending = rejectedItems;
+        current = new BulkRequest();
+        for (int position : pending)
+          current.add(requests.get(position));
+      }
+
+      lane.sent.addAndGet(requests.size());
+      return new BulkResponse(items, System.currentTimeMillis() - begin);
+
+    } finally {
+      if (throttled)
+        release(lane);
+    }
+  }
+
+  /**
+   * Grows batch size and concurrency while the latency is below the target, halves them on rejections or on latency twice the
+   * target.
+   */
+  protected synchronized void adapt(final long latency, final boolean rejections) {
+    if (rejections || latency > targetLatency * 2) {
+      batchActions = Math.max(minActions, batchActions / 2);
+      if (concurrency > 1)
+        concurrency--;
+      throttled.incrementAndGet();
+    } else if (latency < targetLatency) {
+      batchActions = Math.min(maxActions, batchActions + Math.max(1, batchActions / 4));
+      if (concurrency < maxConcurrency && inFlight >= concurrency)
+        // ALL THE SLOTS ARE USED: ONE MORE
+        concurrency++;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Returns the response of an item with its position in the original request.
+   */
+  protected static BulkItemResponse renumber(final BulkItemResponse item, final int position) {
+    return item.isFailed() ?
+        new BulkItemResponse(position, item.getOpType(), item.getFailure()) :
+        new BulkItemResponse(position, item.getOpType(), item.<ActionWriteResponse>getResponse());
+  }
+
+  protected boolean isRejection(final BulkItemResponse item) {
+    final BulkItemResponse.Failure failure = item.getFailure();
+    return failure != null && (failure.getStatus() == RestStatus.TOO_MANY_REQUESTS || (failure.getMessage() != null && failure
+        .getMessage().contains("EsRejectedExecutionException")));
+  }
+
+  protected void backoff(final int attempt) throws InterruptedException {
+    final long delay = Math.min(30000, retryDelay << Math.min(attempt, 16));
+    final long jitter;
+    synchronized (random) {
+      jitter = (long) (random.nextDouble() * delay);
+    }
+    if (attempt == 0)
+      OLogManager.instance().debug(this, "ES bulk of database '%s' rejected, retrying in %dms", dbName, delay / 2 + jitter / 2);
+    Thread.sleep(delay / 2 + jitter / 2);
+  }
+
+  protected synchronized void acquire(final Lane lane) throws InterruptedException {
+    if (lane.waiting++ == 0 && lane.inFlight == 0)
+      // AN IDLE LANE DOESN'T ACCUMULATE CREDIT TO SPEND LATER
+      lane.pass = Math.max(lane.pass, getOther(lane).pass);
+
+    try {
+      while (inFlight >= concurrency || lane.isFull() || !isTurn(lane))
+        // BACKPRESSURE: THE CALLER STOPS READING UNTIL A SLOT IS FREE
+        wait();
+    } finally {
+      lane.waiting--;
+      notifyAll();
+    }
+
+    inFlight++;
+    lane.inFlight++;
+    lane.pass += 1d / lane.weight;
+  }
+
+  protected synchronized void release(final Lane lane) {
+    inFlight--;
+    lane.inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Returns true if the lane can take the next slot: the other lane is not waiting, can't send or has been served more than its
+   * weight.
+   */
+  protected boolean isTurn(final Lane lane) {
+    final Lane other = getOther(lane);
+    return other.waiting == 0 || other.isFull() || lane.pass <= other.pass;
+  }
+
+  protected Lane getOther(final Lane lane) {
+    return lanes[0] == lane ? lanes[1] : lanes[0];
+  }
+
+  public synchronized ODocument toDocument() {
+    final ODocument lanesDoc = new ODocument();
+    for (Lane lane : lanes)
+      lanesDoc.field(lane.name, lane.toDocument(), OType.EMBEDDED);
+
+    return new ODocument()
+        .fields("batchActions", batchActions, "concurrency", concurrency, "retried", retried.get(), "rejected", rejected.get(),
+            "throttled", throttled.get()).field("lanes", lanesDoc, OType.EMBEDDED);
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OProperty;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bulk-load mode of the synchronization jobs. Before the load it creates the mappings of the classes from their properties in the
+ * schema, so Elastic Search doesn't derive them from the documents, and disables the refresh and the replicas of the indexes. After
+ * the load it restores the settings of the indexes, refreshes them and, if the load completed, merges their segments.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchBulkLoad {
+  private static final String                       REFRESH          = "index.refresh_interval";
+  private static final String                       REPLICAS         = "index.number_of_replicas";
+  private static final String                       DEFAULT_REFRESH  = "1s";
+  private static final String                       DEFAULT_REPLICAS = "1";
+
+  private final OElasticSearchDatabaseConfiguration esConfig;
+  private final Client                              client;
+
+  public OElasticSearchBulkLoad(final OElasticSearchDatabaseConfiguration esConfig) {
+    this.esConfig = esConfig;
+    this.client = esConfig.getClient();
+  }
+
+  /**
+   * Returns the index where every class is loaded: its rebuild index, if any, or the index of the class, created if it doesn't
+   * exist yet.
+   */
+  public Map<String, String> getIndexes(final Collection<String> classNames, final Map<String, String> rebuildIndexes) {
+    final Map<String, String> indexes = new LinkedHashMap<String, String>();
+    for (String cl : classNames) {
+      final String index = rebuildIndexes.get(cl) != null ? rebuildIndexes.get(cl) : esConfig.getIndexName(cl);
+      if (!indexes.containsValue(index) && !client.admin().indices().prepareExists(index).get().isExists())
+        try {
+          client.admin().indices().prepareCreate(index).get();
+        } catch (IndexAlreadyExistsException e) {
+          // CREATED BY THE REPLICATION IN THE MEANTIME
+        }
+      indexes.put(cl, index);
+    }
+    return indexes;
+  }
+
+  /**
+   * Creates the mapping of every class in its index with the synchronized properties of the schema. The properties without an
+   * equivalent type, the embedded documents and the projected links are left to the dynamic mapping. If a property has already a
+   * different mapping, it is logged and the other properties are mapped anyway.
+   */
+  public void createMappings(final ODatabaseDocumentTx db, final Map<String, String> indexes) {
+    for (Map.Entry<String, String> entry : indexes.entrySet()) {
+      final OClass cls = db.getMetadata().getImmutableSchemaSnapshot().getClass(entry.getKey());
+      if (cls == null || cls.isAbstract())
+        continue;
+
+      final Set<String> syncFields = esConfig.getClusterRule(cls.getDefaultClusterId());
+      if (syncFields == null)
+        // NOT SYNCHRONIZED
+        continue;
+
+      final Map<String, String> properties = new LinkedHashMap<String, String>();
+      for (OProperty p : cls.properties()) {
+        if (!syncFields.isEmpty() && !syncFields.contains(p.getName()))
+          continue;
+
+        final String type = getMappingType(cls, p);
+        if (type != null)
+          properties.put(p.getName(), type);
+      }
+
+      if (properties.isEmpty())
+        continue;
+
+      try {
+        putMapping(entry.getValue(), cls.getName(), properties);
+      } catch (RuntimeException e) {
+        // CONFLICT WITH THE EXISTENT MAPPING: MAP THE PROPERTIES ONE BY ONE
+        for (Map.Entry<String, String> p : properties.entrySet())
+          try {
+            final Map<String, String> single = new LinkedHashMap<String, String>();
+            single.put(p.getKey(), p.getValue());
+            putMapping(entry.getValue(), cls.getName(), single);
+          } catch (RuntimeException ex) {
+            OLogManager.instance().warn(this, "ES plugin: cannot map property %s.%s as '%s' in index %s: %s", cls.getName(), p.getKey(),
+                p.getValue(), entry.getValue(), ex.getMessage());
+          }
+      }
+    }
+  }
+
+  /**
+   * Disables the refresh and the replicas of the indexes, or of the indexes behind them if they are aliases. Returns the previous
+   * settings of every index, to restore them at the end.
+   */
+  public ODocument disableRefresh(final Collection<String> indexes) {
+    final Set<String> names = new LinkedHashSet<String>(indexes);
+    final GetSettingsResponse response = client.admin().indices().prepareGetSettings(names.toArray(new String[names.size()])).get();
+
+    final ODocument previous = new ODocument();
+    for (ObjectCursor<String> index : response.getIndexToSettings().keys()) {
+      final Settings settings = response.getIndexToSettings().get(index.value);
+      previous.field(index.value, new ODocument()
+          .fields("refresh", settings.get(REFRESH, DEFAULT_REFRESH), "replicas", settings.get(REPLICAS, DEFAULT_REPLICAS)),
+          OType.EMBEDDED);
+    }
+
+    for (String index : previous.fieldNames())
+      client.admin().indices().prepareUpdateSettings(index)
+          .setSettings(Settings.settingsBuilder().put(REFRESH, "-1").put(REPLICAS, 0).build()).get();
+
+    OLogManager.instance()
+        .info(this, "ES plugin: bulk load on indexes %s, refresh and replicas disabled", Arrays.toString(previous.fieldNames()));
+    return previous;
+  }
+
+  /**
+   * Restores the settings of the indexes, then refreshes them and, if the load completed, merges their segments. The errors are
+   * logged, so every index is restored.
+   */
+  public void restore(final ODocument previous, final boolean completed) {
+    for (String index : previous.fieldNames()) {
+      final ODocument settings = previous.field(index);
+      try {
+        client.admin().indices().prepareUpdateSettings(index).setSettings(
+            Settings.settingsBuilder().put(REFRESH, (String) settings.field("refresh"))
+                .put(REPLICAS, (String) settings.field("replicas")).build()).get();
+
+        client.admin().indices().prepareRefresh(index).get();
+        if (completed)
+          client.admin().indices().prepareForceMerge(index).get();
+
+      } catch (RuntimeException e) {
+        OLogManager.instance().error(this, "ES plugin: error on restoring the settings of index %s after the bulk load: %s", e, index,
+            settings.toJSON());
+      }
+    }
+    OLogManager.instance()
+        .info(this, "ES plugin: bulk load on indexes %s ended, settings restored", Arrays.toString(previous.fieldNames()));
+  }
+
+  protected void putMapping(final String index, final String type, final Map<String, String> properties) {
+    final StringBuilder mapping = new StringBuilder("{\"").append(type).append("\":{\"properties\":{");
+    for (Map.Entry<String, String> p : properties.entrySet()) {
+      if (mapping.charAt(mapping.length() - 1) != '{')
+        mapping.append(',');
+      mapping.append('"').append(p.getKey()).append("\":{\"type\":\"").append(p.getValue()).append("\"}");
+    }
+    mapping.append("}}}");
+
+    client.admin().indices().preparePutMapping(index).setType(type).setSource(mapping.toString()).get();
+  }
+
+  /**
+   * Returns the Elastic Search type of a property, as the serializer writes it, or null to leave it to the dynamic mapping.
+   */
+  protected String getMappingType(final OClass cls, final OProperty property) {
+    switch (property.getType()) {
+    case LINK:
+      return esConfig.getProjections().getFields(cls, property.getName()) != null ? null : "string";
+
+    case LINKLIST:
+    case LINKSET:
+    case LINKBAG:
+      final OElasticSearchLinkPolicies.Policy policy = esConfig.getLinkPolicies().getPolicy(cls, property.getName());
+      if (policy == null || policy.getType() == OElasticSearchLinkPolicies.TYPE.LIMIT)
+        return "string";
+      return policy.getType() == OElasticSearchLinkPolicies.TYPE.COUNT ? "long" : null;
+
+    case EMBEDDEDLIST:
+    case EMBEDDEDSET:
+      // ARRAYS ARE MAPPED AS THEIR ITEMS
+      return property.getLinkedType() != null ? getMappingType(property.getLinkedType()) : null;
+
+    default:
+      return getMappingType(property.getType());
+    }
+  }
+
+  protected static String getMappingType(final OType type) {
+    switch (type) {
+    case BOOLEAN:
+      return "boolean";
+    case BYTE:
+      return "byte";
+    case SHORT:
+      return "short";
+    case INTEGER:
+      return "integer";
+    case LONG:
+      return "long";
+    case FLOAT:
+      return "float";
+    case DOUBLE:
+    case DECIMAL:
+      return "double";
+    case DATE:
+    case DATETIME:
+      return "date";
+    case STRING:
+    case LINK:
+      return "string";
+    case BINARY:
+      return "binary";
+    default:
+      return null;
+    }
+  }
+}
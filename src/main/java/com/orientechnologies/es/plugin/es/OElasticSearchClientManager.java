@@ -0,0 +1,166 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.orientechnologies.es.plugin.es.OElasticSearchDatabaseConfiguration.getSetting;
+
+/**
+ * Shares the Elastic Search clients between the databases: the databases configured with the same cluster name, seed nodes and
+ * client settings use the same client, with its thread pools and connections. A client is closed when the last database using
+ * it is dropped, or at the plugin shutdown.
+ * <p>
+ * With sniffing enabled the client discovers the data nodes of the cluster from the seed nodes and balances the requests across
+ * them in round-robin.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchClientManager {
+  private static final int DEFAULT_PORT = 9300;
+
+  private final Map<String, TransportClient> clients    = new HashMap<String, TransportClient>();
+  private final Map<Client, String>          keys       = new IdentityHashMap<Client, String>();
+  private final Map<String, Integer>         references = new HashMap<String, Integer>();
+
+  /**
+   * Returns the client for the "es" section of a database configuration, creating it the first time.
+   */
+  public synchronized Client acquire(final ODocument configuration) throws UnknownHostException {
+    final String clusterName = getSetting(configuration, "es.clusterName", "elasticsearch");
+    final boolean sniff = getSetting(configuration, "es.sniff", false);
+    final List<String> hosts = getHosts(configuration);
+
+    final Settings.Builder settings = Settings.settingsBuilder().put("cluster.name", clusterName)
+        .put("client.transport.sniff", sniff);
+
+    if (getSetting(configuration, "es.compress", false))
+      // COMPRESS THE REQUESTS ON THE WIRE, USEFUL WHEN THE NETWORK IS SLOWER THAN THE CPU
+      settings.put("transport.tcp.compress", true);
+
+    final int workers = getSetting(configuration, "es.nettyWorkers", 0);
+    if (workers > 0)
+      settings.put("transport.netty.worker_count", workers);
+
+    final Object threadPools = configuration.eval("es.threadPool");
+    if (threadPools instanceof ODocument)
+      for (String pool : ((ODocument) threadPools).fieldNames())
+        settings.put("threadpool." + pool + ".size", ((ODocument) threadPools).field(pool).toString());
+
+    final Settings clientSettings = settings.build();
+
+    // THE SAME CLUSTER AND SETTINGS SHARE THE CLIENT
+    final List<String> sortedHosts = new ArrayList<String>(hosts);
+    Collections.sort(sortedHosts);
+    final String key = sortedHosts + clientSettings.getAsMap().toString();
+
+    TransportClient client = clients.get(key);
+    if (client == null) {
+      client = TransportClient.builder().settings(clientSettings).build();
+      try {
+        for (String host : hosts) {
+          final int sep = host.lastIndexOf(':');
+          final String address = sep > -1 ? host.substring(0, sep) : host;
+          final int port = sep > -1 ? Integer.parseInt(host.substring(sep + 1)) : DEFAULT_PORT;
+          client.addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName(address), port));
+        }
+      } catch (UnknownHostException e) {
+        client.close();
+        throw e;
+      }
+
+      OLogManager.instance().info(this, "ES plugin: connected to cluster '%s' through %s (sniff=%s)", clusterName, hosts, sniff);
+
+      clients.put(key, client);
+      keys.put(client, key);
+      references.put(key, 0);
+    }
+
+    references.put(key, references.get(key) + 1);
+    return client;
+  }
+
+  /**
+   * Releases a client acquired by a database. The client is closed if it is not used anymore.
+   */
+  public synchronized void release(final Client client) {
+    final String key = keys.get(client);
+    if (key == null)
+      return;
+
+    final int refs = references.get(key) - 1;
+    if (refs > 0) {
+      references.put(key, refs);
+      return;
+    }
+
+    references.remove(key);
+    keys.remove(client);
+    clients.remove(key).close();
+  }
+
+  /**
+   * Closes all the clients.
+   */
+  public synchronized void close() {
+    for (TransportClient client : clients.values())
+      client.close();
+    clients.clear();
+    keys.clear();
+    references.clear();
+  }
+
+  public synchronized int getClients() {
+    return clients.size();
+  }
+
+  /**
+   * Returns the seed nodes as "host:port": the list "es.hosts" or, for the old configurations, "es.host" and "es.port".
+   */
+  protected List<String> getHosts(final ODocument configuration) {
+    final List<String> hosts = new ArrayList<String>();
+
+    final Object seeds = configuration.eval("es.hosts");
+    if (seeds instanceof Collection)
+      for (Object h : (Collection<?>) seeds)
+        hosts.add(h.toString());
+
+    if (hosts.isEmpty())
+      hosts.add(getSetting(configuration, "es.host", "localhost") + ":"
+          + getSetting(configuration, "es.port", DEFAULT_PORT));
+
+    return hosts;
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.common.log.OLogManager;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps only the last change of every record (index or delete) for a time window, then passes the changes to the replicator. A
+ * record updated many times in the window is sent once, so the traffic to Elastic Search per record is bounded by the window and
+ * not by the update rate. The order of the changes of the same record is preserved.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchCoalescer {
+  private final OElasticSearchReplicator replicator;
+  private final String                   dbName;
+  private final long                     window;
+  private final int                      maxSize;
+  private final Thread                   flusher;
+  private final Object                   flushLock = new Object();
+  private Map<String, ActionRequest>     buffer    = new LinkedHashMap<String, ActionRequest>();
+  private volatile boolean               running   = true;
+
+  private final AtomicLong               collapsed = new AtomicLong();
+
+  public OElasticSearchCoalescer(final OElasticSearchReplicator replicator, final String dbName, final long window,
+      final int maxSize) {
+    this.replicator = replicator;
+    this.dbName = dbName;
+    this.window = window;
+    this.maxSize = maxSize;
+
+    flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (running) {
+          try {
+            Thread.sleep(OElasticSearchCoalescer.this.window);
+          } catch (InterruptedException e) {
+            break;
+          }
+          flush();
+        }
+      }
+    }, "OrientDB ES Coalescer (" + dbName + ")");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Buffers the change, replacing the previous change of the same record. If the buffer is full, it is flushed by the caller.
+   */
+  public void add(final ActionRequest request) {
+    if (!(request instanceof DocumentRequest)) {
+      replicator.enqueue(request);
+      return;
+    }
+
+    // THE SAME RECORD CAN BE WRITTEN ALSO TO AN INDEX BEING REBUILT
+    final String key = ((DocumentRequest) request).index() + "/" + ((DocumentRequest) request).id();
+
+    boolean full;
+    synchronized (this) {
+      if (buffer.remove(key) != null)
+        collapsed.incrementAndGet();
+      // RE-INSERT TO KEEP THE ORDER OF THE LAST CHANGES
+      buffer.put(key, request);
+      full = buffer.size() >= maxSize;
+    }
+
+    if (full)
+      flush();
+  }
+
+  /**
+   * Passes the buffered changes to the replicator.
+   */
+  public void flush() {
+    // ONE FLUSH AT A TIME, SO THE CHANGES OF THE SAME RECORD ARE ENQUEUED IN ORDER
+    synchronized (flushLock) {
+      final Map<String, ActionRequest> toFlush;
+      synchronized (this) {
+        if (buffer.isEmpty())
+          return;
+        toFlush = buffer;
+        buffer = new LinkedHashMap<String, ActionRequest>();
+      }
+
+      for (ActionRequest r : toFlush.values())
+        replicator.enqueue(r);
+    }
+  }
+
+  /**
+   * Stops the background flush and flushes the buffered changes.
+   */
+  public void close() {
+    // NO INTERRUPT: A FLUSH IN PROGRESS COULD DROP THE CHANGES WAITING FOR THE QUEUE
+    running = false;
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+
+    OLogManager.instance().info(this, "ES replication of database '%s': %d changes collapsed by the coalescing buffer", dbName,
+        collapsed.get());
+  }
+
+  public synchronized int getSize() {
+    return buffer.size();
+  }
+
+  /**
+   * Returns the number of changes replaced by a later change of the same record.
+   */
+  public long getCollapsed() {
+    return collapsed.get();
+  }
+}
@@ -19,17 +19,31 @@
  */
 package com.orientechnologies.es.plugin.es;
 
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+import com.orientechnologies.common.log.OLogManager;
 import com.orientechnologies.orient.core.db.ODatabaseDocumentInternal;
 import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OSchema;
 import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Elastic Search database configuration.
@@ -37,14 +51,53 @@ import java.util.Set;
  * @author Luca Garulli
  */
 public class OElasticSearchDatabaseConfiguration {
-  private final Map<String, Set<String>> includeClasses  = new HashMap<String, Set<String>>();
-  private final Map<String, Set<String>> includeClusters = new HashMap<String, Set<String>>();
-  private final Set<String>              excludeClasses  = new HashSet<String>();
-  private final Set<String>              excludeClusters = new HashSet<String>();
-  private final Client client;
+  /**
+   * DATABASE: one index per database with a type per class. CLASS: one index per class, behind the alias of the class and the alias
+   * of the database.
+   */
+  public enum LAYOUT {
+    DATABASE, CLASS
+  }
+
+  private static final Set<String>           EXCLUDED        = Collections.unmodifiableSet(new HashSet<String>());
+
+  private final Map<String, Set<String>>     includeClasses  = new HashMap<String, Set<String>>();
+  private final Map<String, Set<String>>     includeClusters = new HashMap<String, Set<String>>();
+  private final Set<String>                  excludeClasses  = new HashSet<String>();
+  private final Set<String>                  excludeClusters = new HashSet<String>();
+  private final String                       dbName;
+  private final Client                       client;
+  private final LAYOUT                       layout;
+  private final Set<String>                  classIndexes    = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Map<String, String>          rebuildIndexes  = new ConcurrentHashMap<String, String>();
+  private final OElasticSearchReplicator     replicator;
+  private final boolean                      transactional;
+  private final boolean                      partialUpdates;
+  private final OElasticSearchLinkPolicies   linkPolicies;
+  private final OElasticSearchProjections    projections;
+  private final OElasticSearchSerializer     serializer;
+  private final Set<String>                  linkTypes       = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private volatile Set<String>[]             clusterRules;
+  private final OElasticSearchMetrics        metrics;
+  private final OElasticSearchBulkController bulkController;
+  private final OElasticSearchSearchCache    searchCache;
+  private final int                          searchPageSize;
+  private OElasticSearchOwnership            ownership;
 
-  public OElasticSearchDatabaseConfiguration(final Client client, final ODocument configuration) {
+  public OElasticSearchDatabaseConfiguration(final String dbName, final String databasePath, final Client client,
+      final ODocument configuration) {
+    this.dbName = dbName;
     this.client = client;
+    this.metrics = new OElasticSearchMetrics(dbName);
+    this.bulkController = new OElasticSearchBulkController(dbName, client, configuration);
+    this.searchCache = new OElasticSearchSearchCache(getSetting(configuration, "search.cache.size", 100),
+        getSetting(configuration, "search.cache.maxResults", 10000), getSetting(configuration, "search.cache.visibilityDelay", 2000));
+    this.searchPageSize = getSetting(configuration, "search.pageSize", 1000);
+    this.layout = LAYOUT.valueOf(getSetting(configuration, "layout", "database").toUpperCase());
+    this.linkPolicies = new OElasticSearchLinkPolicies(configuration);
+    this.projections = new OElasticSearchProjections(configuration);
+    this.serializer = new OElasticSearchSerializer(
+        XContentType.valueOf(getSetting(configuration, "contentType", "json").toUpperCase()), linkPolicies, projections);
 
     if (configuration.eval("exclude.classes") != null)
       excludeClasses.addAll((Collection<String>) configuration.eval("exclude.classes"));
@@ -73,41 +126,406 @@ public class OElasticSearchDatabaseConfiguration {
           includeClasses.put(cl, new HashSet<String>());
       }
     }
+
+    transactional = getSetting(configuration, "replication.transactional", false);
+    // THE COALESCING BUFFER KEEPS ONLY THE LAST CHANGE OF A RECORD, SO IT NEEDS FULL DOCUMENTS
+    partialUpdates = getSetting(configuration, "replication.partialUpdates", true)
+        && getSetting(configuration, "replication.coalesce.window", 0) == 0;
+    replicator = new OElasticSearchReplicator(dbName, databasePath, bulkController, configuration, metrics);
+    metrics.registerProfilerHooks(replicator);
   }
 
   /**
    * Returns null if the record must be not synchronized, other wise the set of fields to synchronize. An empty set means all the
-   * fields.
+   * fields. The rules are compiled per cluster id, so this is an array read.
    */
   public Set<String> getSyncFields(final ODocument record) {
-    final String className = record.getClassName();
-    if (className == null)
-      return null;
+    return getClusterRule(record.getIdentity().getClusterId());
+  }
 
-    if (excludeClasses.contains(className))
+  /**
+   * Returns true if the records of the cluster are synchronized.
+   */
+  public boolean isClusterSynchronized(final int clusterId) {
+    return getClusterRule(clusterId) != null;
+  }
+
+  protected Set<String> getClusterRule(final int clusterId) {
+    if (clusterId < 0)
       return null;
 
+    Set<String>[] rules = clusterRules;
+    if (rules == null || clusterId >= rules.length || rules[clusterId] == null)
+      // FIRST CALL, NEW CLUSTER OR CLUSTER ADDED TO A CLASS
+      rules = compileRules();
+
+    final Set<String> rule = clusterId < rules.length ? rules[clusterId] : null;
+    return rule != EXCLUDED ? rule : null;
+  }
+
+  /**
+   * Forces the rules to be compiled again at the next record, after a change of the schema or of the clusters.
+   */
+  public void invalidateRules() {
+    clusterRules = null;
+    linkPolicies.invalidate();
+    projections.invalidate();
+    if (ownership != null)
+      ownership.invalidate();
+  }
+
+  /**
+   * Compiles the include/exclude rules in an array indexed by cluster id. The rules of a class apply also to its subclasses, unless
+   * they have their own rules. The clusters not synchronized are marked as EXCLUDED, so a cluster unknown at compile time is
+   * recognized.
+   */
+  protected synchronized Set<String>[] compileRules() {
     final ODatabaseDocumentInternal db = ODatabaseRecordThreadLocal.INSTANCE.get();
+    final OSchema schema = db.getMetadata().getImmutableSchemaSnapshot();
+
+    final Collection<String> clusterNames = db.getClusterNames();
+    int maxClusterId = -1;
+    for (String clusterName : clusterNames)
+      maxClusterId = Math.max(maxClusterId, db.getClusterIdByName(clusterName));
+
+    final Set<String>[] rules = newRules(maxClusterId + 1);
+    for (String clusterName : clusterNames) {
+      final int clusterId = db.getClusterIdByName(clusterName);
+      if (clusterId < 0)
+        continue;
+
+      final OClass cls = schema.getClassByClusterId(clusterId);
+      final Set<String> classRule = cls != null ? getClassRule(cls) : EXCLUDED;
+      if (classRule == EXCLUDED || excludeClusters.contains(clusterName))
+        rules[clusterId] = EXCLUDED;
+      else if (classRule != null)
+        rules[clusterId] = classRule;
+      else if (includeClusters.containsKey(clusterName))
+        rules[clusterId] = includeClusters.get(clusterName);
+      else
+        // SYNCHRONIZE ALL FIELDS
+        rules[clusterId] = Collections.<String>emptySet();
+    }
+
+    clusterRules = rules;
+    return rules;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Set<String>[] newRules(final int size) {
+    return (Set<String>[]) new Set<?>[size];
+  }
+
+  /**
+   * Returns the rule of the class or of the nearest super class with a rule: EXCLUDED, the fields to include or null if no rule
+   * applies.
+   */
+  protected Set<String> getClassRule(final OClass cls) {
+    if (excludeClasses.contains(cls.getName()))
+      return EXCLUDED;
+
+    if (includeClasses.containsKey(cls.getName()))
+      return includeClasses.get(cls.getName());
+
+    for (OClass superClass : cls.getSuperClasses()) {
+      final Set<String> rule = getClassRule(superClass);
+      if (rule != null)
+        return rule;
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if the records of the cluster are indexed by this server: always, unless the ownership of a distributed cluster
+   * of servers is set.
+   */
+  public boolean isOwner(final int clusterId) {
+    return ownership == null || ownership.isOwner(clusterId);
+  }
+
+  /**
+   * Returns true if this server executes the operations on the whole index, as dropping a class.
+   */
+  public boolean isCoordinator() {
+    return ownership == null || ownership.isCoordinator();
+  }
+
+  public OElasticSearchOwnership getOwnership() {
+    return ownership;
+  }
+
+  /**
+   * Sets the ownership of the records, before the configuration is used.
+   */
+  public void setOwnership(final OElasticSearchOwnership ownership) {
+    this.ownership = ownership;
+  }
+
+  public LAYOUT getLayout() {
+    return layout;
+  }
+
+  /**
+   * Returns the name of the index of the database, or the alias of all the class indexes with the CLASS layout.
+   */
+  public String getDatabaseIndexName() {
+    return dbName.toLowerCase();
+  }
 
-    final String clusterName = db.getClusterNameById(record.getIdentity().getClusterId());
-    if (excludeClasses.contains(clusterName))
+  /**
+   * Returns the index (or alias) where the records of a class are written. With the CLASS layout, the index of the class is created
+   * the first time.
+   */
+  public String getIndexName(final String className) {
+    if (layout == LAYOUT.DATABASE || className == null)
+      return getDatabaseIndexName();
+
+    final String alias = getClassAlias(className);
+    if (!classIndexes.contains(alias))
+      createClassIndex(alias);
+    return alias;
+  }
+
+  public String getClassAlias(final String className) {
+    return getDatabaseIndexName() + "_" + className.toLowerCase();
+  }
+
+  /**
+   * Returns the index the class is being rebuilt into, or null if the class is not being rebuilt.
+   */
+  public String getRebuildIndex(final String className) {
+    if (rebuildIndexes.isEmpty() || className == null)
       return null;
+    return rebuildIndexes.get(className);
+  }
 
-    if (!includeClasses.isEmpty()) {
-      if (includeClasses.containsKey(className))
-        return includeClasses.get(className);
+  /**
+   * Starts the rebuild of a class in a new index, not visible until {@link #completeRebuild(String)}. Pass the index to resume an
+   * interrupted rebuild. Returns the new index.
+   */
+  public String startRebuild(final String className, String index) {
+    if (layout != LAYOUT.CLASS)
+      throw new IllegalStateException("Rebuild requires the CLASS layout");
+
+    if (index == null) {
+      index = getClassAlias(className) + "_" + System.currentTimeMillis();
+      client.admin().indices().prepareCreate(index).get();
     }
+    rebuildIndexes.put(className, index);
+    return index;
+  }
+
+  /**
+   * Moves the aliases of the class to the rebuilt index with one atomic operation, then deletes the previous indexes.
+   */
+  public void completeRebuild(final String className) {
+    final String index = rebuildIndexes.get(className);
+    if (index == null)
+      return;
+
+    final String alias = getClassAlias(className);
+    final List<String> previous = getIndexes(alias);
 
-    if (!includeClusters.isEmpty()) {
-      if (includeClusters.containsKey(clusterName))
-        return includeClusters.get(clusterName);
+    final IndicesAliasesRequestBuilder aliases = client.admin().indices().prepareAliases().addAlias(index, alias)
+        .addAlias(index, getDatabaseIndexName());
+    for (String p : previous)
+      aliases.removeAlias(p, alias).removeAlias(p, getDatabaseIndexName());
+    aliases.get();
+
+    classIndexes.add(alias);
+    rebuildIndexes.remove(className);
+
+    if (!previous.isEmpty())
+      client.admin().indices().prepareDelete(previous.toArray(new String[previous.size()])).get();
+
+    OLogManager.instance().info(this, "ES plugin: rebuilt index %s of class %s.%s", index, dbName, className);
+  }
+
+  /**
+   * Deletes the indexes of a class (CLASS layout only).
+   */
+  public void dropClassIndexes(final String className) {
+    final String alias = getClassAlias(className);
+    final List<String> indexes = getIndexes(alias);
+    final String rebuildIndex = rebuildIndexes.remove(className);
+    if (rebuildIndex != null)
+      indexes.add(rebuildIndex);
+
+    if (!indexes.isEmpty())
+      client.admin().indices().prepareDelete(indexes.toArray(new String[indexes.size()])).get();
+    classIndexes.remove(alias);
+    linkTypes.clear();
+  }
+
+  /**
+   * Deletes the index of the database, or all the class indexes with the CLASS layout.
+   */
+  public void dropIndexes() {
+    if (layout == LAYOUT.DATABASE)
+      client.admin().indices().prepareDelete(getDatabaseIndexName()).get();
+    else {
+      final List<String> indexes = getIndexes(getDatabaseIndexName());
+      indexes.addAll(rebuildIndexes.values());
+      if (!indexes.isEmpty())
+        client.admin().indices().prepareDelete(indexes.toArray(new String[indexes.size()])).get();
+      classIndexes.clear();
+      rebuildIndexes.clear();
     }
+    linkTypes.clear();
+  }
+
+  /**
+   * Returns the indexes behind an alias.
+   */
+  protected List<String> getIndexes(final String alias) {
+    final List<String> indexes = new ArrayList<String>();
+    for (ObjectCursor<String> index : client.admin().indices().prepareGetAliases(alias).get().getAliases().keys())
+      indexes.add(index.value);
+    return indexes;
+  }
+
+  protected synchronized void createClassIndex(final String alias) {
+    if (classIndexes.contains(alias))
+      return;
+
+    if (!client.admin().indices().prepareAliasesExist(alias).get().exists())
+      // THE INDEX HAS A PHYSICAL NAME, SO IT CAN BE REPLACED BY A REBUILD
+      client.admin().indices().prepareCreate(alias + "_" + System.currentTimeMillis()).addAlias(new Alias(alias))
+          .addAlias(new Alias(getDatabaseIndexName())).get();
 
-    // SYNCHRONIZE ALL FIELDS
-    return Collections.EMPTY_SET;
+    classIndexes.add(alias);
+  }
+
+  /**
+   * Returns the type of the child documents of the links of a class field: "<class>.<field>".
+   */
+  public String getLinkType(final String className, final String fieldName) {
+    return className + "." + fieldName;
+  }
+
+  /**
+   * Creates the mapping of a type of child documents the first time, so "@link" and "@parent" are not analyzed and can be searched
+   * by term.
+   */
+  public void createLinkType(final String index, final String type) {
+    final String key = index + "/" + type;
+    if (linkTypes.contains(key))
+      return;
+
+    synchronized (linkTypes) {
+      if (linkTypes.contains(key))
+        return;
+
+      try {
+        putLinkMapping(index, type);
+      } catch (IndexNotFoundException e) {
+        // FIRST DOCUMENT: THE INDEX IS CREATED BY THE BULK REQUESTS, NOT BY THE MAPPING
+        try {
+          client.admin().indices().prepareCreate(index).get();
+        } catch (IndexAlreadyExistsException ignore) {
+          // CREATED CONCURRENTLY
+        }
+        putLinkMapping(index, type);
+      }
+      linkTypes.add(key);
+    }
+  }
+
+  protected void putLinkMapping(final String index, final String type) {
+    final String notAnalyzed = "{\"type\":\"string\",\"index\":\"not_analyzed\"}";
+    client.admin().indices().preparePutMapping(index).setType(type)
+        .setSource("{\"" + type + "\":{\"properties\":{\"@link\":" + notAnalyzed + ",\"@parent\":" + notAnalyzed + "}}}").get();
+  }
+
+  /**
+   * Returns the types of the child documents of the links of a class found in the index.
+   */
+  public List<String> getLinkTypes(final String index, final String className) {
+    final List<String> types = new ArrayList<String>();
+    final String prefix = className + ".";
+    for (ObjectCursor<ImmutableOpenMap<String, MappingMetaData>> mappings : client.admin().indices().prepareGetMappings(index).get()
+        .getMappings().values())
+      for (ObjectCursor<String> type : mappings.value.keys())
+        if (type.value.startsWith(prefix) && !types.contains(type.value))
+          types.add(type.value);
+    return types;
   }
 
   public Client getClient() {
     return client;
   }
+
+  public OElasticSearchSerializer getSerializer() {
+    return serializer;
+  }
+
+  public OElasticSearchLinkPolicies getLinkPolicies() {
+    return linkPolicies;
+  }
+
+  public OElasticSearchProjections getProjections() {
+    return projections;
+  }
+
+  public OElasticSearchReplicator getReplicator() {
+    return replicator;
+  }
+
+  /**
+   * Returns true if the changes made inside a transaction are replicated only after the commit.
+   */
+  public boolean isTransactional() {
+    return transactional;
+  }
+
+  /**
+   * Returns true if the updates send only the changed fields.
+   */
+  public boolean isPartialUpdates() {
+    return partialUpdates;
+  }
+
+  /**
+   * Stops the replication. The client is shared, so it is released by the plugin through the client manager.
+   */
+  public void close() {
+    replicator.close();
+    metrics.unregisterProfilerHooks();
+    if (ownership != null)
+      ownership.close();
+  }
+
+  public OElasticSearchMetrics getMetrics() {
+    return metrics;
+  }
+
+  public OElasticSearchBulkController getBulkController() {
+    return bulkController;
+  }
+
+  public OElasticSearchSearchCache getSearchCache() {
+    return searchCache;
+  }
+
+  /**
+   * Returns the number of records fetched at every round trip by the searches.
+   */
+  public int getSearchPageSize() {
+    return searchPageSize;
+  }
+
+  protected static String getSetting(final ODocument configuration, final String path, final String defaultValue) {
+    final Object value = configuration.eval(path);
+    return value != null ? value.toString() : defaultValue;
+  }
+
+  protected static boolean getSetting(final ODocument configuration, final String path, final boolean defaultValue) {
+    final Object value = configuration.eval(path);
+    return value instanceof Boolean ? (Boolean) value : defaultValue;
+  }
+
+  protected static int getSetting(final ODocument configuration, final String path, final int defaultValue) {
+    final Object value = configuration.eval(path);
+    return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+  }
 }
@@ -19,42 +19,78 @@
  */
 package com.orientechnologies.es.plugin.es;
 
+import com.orientechnologies.common.exception.OException;
+import com.orientechnologies.orient.core.command.OCommandExecutor;
+import com.orientechnologies.orient.core.command.OCommandRequestText;
+import com.orientechnologies.orient.core.db.ODatabase;
+import com.orientechnologies.orient.core.db.ODatabaseDocumentInternal;
+import com.orientechnologies.orient.core.db.ODatabaseListener;
+import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
 import com.orientechnologies.orient.core.db.record.OIdentifiable;
-import com.orientechnologies.orient.core.db.record.ridbag.ORidBag;
+import com.orientechnologies.orient.core.db.record.OMultiValueChangeEvent;
+import com.orientechnologies.orient.core.db.record.OMultiValueChangeTimeLine;
+import com.orientechnologies.orient.core.db.record.ORecordLazyMultiValue;
+import com.orientechnologies.orient.core.exception.OSerializationException;
 import com.orientechnologies.orient.core.hook.ODocumentHookAbstract;
+import com.orientechnologies.orient.core.id.ORID;
 import com.orientechnologies.orient.core.record.ORecord;
 import com.orientechnologies.orient.core.record.impl.ODocument;
-import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
 import org.elasticsearch.action.bulk.BulkProcessor;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
-import org.elasticsearch.common.unit.ByteSizeUnit;
-import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.VersionType;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
- * Elastic Search connector plugin.
+ * Elastic Search connector plugin. When the replication is transactional, the changes made inside a transaction are collected and
+ * replicated only after the commit, while a rollback discards them. The links with the child policy are replicated as one document
+ * per link: the links added and removed by an update are captured before the record is saved, so updating a record with millions
+ * of links sends only the changed links. In the same way, the fields changed by an update are captured before the record is saved
+ * and only they are sent, as a partial update.
  *
  * @author Luca Garulli
  */
-public class OElasticSearchDatabaseSync extends ODocumentHookAbstract {
+public class OElasticSearchDatabaseSync extends ODocumentHookAbstract implements ODatabaseListener {
+  private static final int UPDATE_RETRIES = 3;
+
+  /**
+   * Link added or removed from a collection with the child policy.
+   */
+  private static class LinkChange {
+    private final String        fieldName;
+    private final OIdentifiable link;
+    private final boolean       added;
+
+    private LinkChange(final String fieldName, final OIdentifiable link, final boolean added) {
+      this.fieldName = fieldName;
+      this.link = link;
+      this.added = added;
+    }
+  }
 
   private final OElasticSearchDatabaseConfiguration esClient;
   private final String                              dbName;
+  private final List<ActionRequest>                 txChanges     = new ArrayList<ActionRequest>();
+  private final Map<ODocument, List<LinkChange>>    linkChanges   = new IdentityHashMap<ODocument, List<LinkChange>>();
+  private final Map<ODocument, Set<String>>         updatedFields = new IdentityHashMap<ODocument, Set<String>>();
+  private final List<ORID>                          txProjected   = new ArrayList<ORID>();
+  private boolean                                   rebuild;
 
   public OElasticSearchDatabaseSync(final String dbName, final OElasticSearchDatabaseConfiguration esClient) {
     this.dbName = dbName;
@@ -62,126 +98,562 @@ public class OElasticSearchDatabaseSync extends ODocumentHookAbstract {
   }
 
   public long syncBatch(final Iterator<? extends OIdentifiable> iterator) {
-    final BulkProcessor bulkProcessor = BulkProcessor.builder(esClient.getClient(), new BulkProcessor.Listener() {
+    final OElasticSearchBulk bulk = createBulk(null);
+    try {
+      return syncBatch(iterator, bulk);
+    } finally {
+      bulk.close();
+    }
+  }
 
-      @Override
-      public void beforeBulk(long l, BulkRequest bulkRequest) {
-      }
+  /**
+   * Synchronizes the records browsed by the iterator through an existent bulk, without closing it.
+   */
+  public long syncBatch(final Iterator<? extends OIdentifiable> iterator, final OElasticSearchBulk bulk) {
+    long syncItems;
+    for (syncItems = 0; iterator.hasNext(); syncItems++)
+      syncRecord(iterator.next(), bulk);
 
-      @Override
-      public void afterBulk(long l, BulkRequest bulkRequest, BulkResponse bulkResponse) {
-      }
+    return syncItems;
+  }
 
-      @Override
-      public void afterBulk(long l, BulkRequest bulkRequest, Throwable throwable) {
-      }
-    }).setBulkActions(10000).setBulkSize(new ByteSizeValue(10, ByteSizeUnit.MB)).setFlushInterval(TimeValue.timeValueSeconds(30))
-        .build();
+  /**
+   * Synchronizes a record through an existent bulk. Returns false if the record must not be synchronized by this server.
+   */
+  public boolean syncRecord(final OIdentifiable id, final OElasticSearchBulk bulk) {
+    if (!esClient.isOwner(id.getIdentity().getClusterId()))
+      // INDEXED BY ANOTHER SERVER
+      return false;
+
+    final ORecord record = id.getRecord();
+    if (!(record instanceof ODocument))
+      return false;
+
+    final IndexRequest request = createIndexRequest((ODocument) record);
+    if (request == null)
+      return false;
+
+    bulk.add(request);
+    sendLinks((ODocument) record, request.index(), true, bulk);
+    return true;
+  }
 
-    long syncItems;
-    for (syncItems = 0; iterator.hasNext(); syncItems++) {
-      final OIdentifiable id = iterator.next();
+  /**
+   * Creates a bulk sized by the bulk controller of the database. The bulk requests are executed on the caller thread and the
+   * listener, if any, is called before add() returns.
+   */
+  public OElasticSearchBulk createBulk(final BulkProcessor.Listener listener) {
+    return new OElasticSearchBulk(dbName, esClient.getBulkController(), esClient.getMetrics(), listener);
+  }
 
-      final ORecord record = id.getRecord();
+  /**
+   * Creates the request to index the document with the fields to synchronize, or null if the document must not be synchronized.
+   */
+  protected IndexRequest createIndexRequest(final ODocument doc) {
+    if (rebuild) {
+      // REBUILD JOB: WRITE IN THE NEW INDEX, IF THE CLASS IS REBUILT
+      final String rebuildIndex = esClient.getRebuildIndex(doc.getClassName());
+      if (rebuildIndex != null)
+        return createIndexRequest(doc, rebuildIndex, true);
+    }
+    return createIndexRequest(doc, null, false);
+  }
 
-      final Map<String, Object> map = getMap(record);
+  /**
+   * Creates the request to index the document in the index passed, or in the index of its class if null. A versioned request
+   * doesn't overwrite a more recent version of the same record, written concurrently by a hook and a rebuild job.
+   */
+  protected IndexRequest createIndexRequest(final ODocument doc, final String index, final boolean versioned) {
+    final Set<String> syncFields = esClient.getSyncFields(doc);
+    if (syncFields == null)
+      return null;
+
+    try {
+      final IndexRequest request = new IndexRequest(index != null ? index : getIndexName(doc.getClassName()), doc.getClassName(),
+          doc.getIdentity().toString()).source(esClient.getSerializer().serialize(doc, syncFields));
+      if (versioned)
+        request.versionType(VersionType.EXTERNAL_GTE).version(doc.getVersion());
+      return request;
+    } catch (IOException e) {
+      throw OException.wrapException(new OSerializationException("Error on serializing record " + doc.getIdentity()), e);
+    }
+  }
 
-      if (map != null)
-        bulkProcessor.add(
-            new IndexRequest(getIndexName(), ((ODocument) record).getClassName(), record.getIdentity().toString()).source(map));
+  /**
+   * Creates the partial update of the changed fields of the document, or null if the document must not be synchronized.
+   */
+  protected UpdateRequest createUpdateRequest(final ODocument doc, final Set<String> fields) {
+    if (esClient.getSyncFields(doc) == null)
+      return null;
+
+    try {
+      return new UpdateRequest(getIndexName(doc.getClassName()), doc.getClassName(), doc.getIdentity().toString())
+          .doc(esClient.getSerializer().serializeFields(doc, fields)).retryOnConflict(UPDATE_RETRIES);
+    } catch (IOException e) {
+      throw OException.wrapException(new OSerializationException("Error on serializing record " + doc.getIdentity()), e);
     }
+  }
 
-    bulkProcessor.close();
+  /**
+   * Used by the jobs that rebuild classes in new indexes.
+   */
+  public void setRebuild(final boolean rebuild) {
+    this.rebuild = rebuild;
+  }
 
-    return syncItems;
+  @Override
+  public void onRecordAfterCreate(final ODocument iDocument) {
+    replicateIndex(iDocument, true);
   }
 
-  protected Map<String, Object> getMap(final ORecord record) {
-    Map<String, Object> map = null;
+  @Override
+  public RESULT onRecordBeforeUpdate(final ODocument iDocument) {
+    if (!esClient.isOwner(iDocument.getIdentity().getClusterId()))
+      return RESULT.RECORD_NOT_CHANGED;
+
+    // THE CHANGES ARE NOT AVAILABLE ANYMORE ONCE THE RECORD IS SAVED
+    if (esClient.getLinkPolicies().hasChildPolicies()) {
+      final List<LinkChange> changes = getLinkChanges(iDocument);
+      if (changes != null)
+        linkChanges.put(iDocument, changes);
+      else
+        linkChanges.remove(iDocument);
+    }
 
-    if (record instanceof ODocument) {
-      final ODocument doc = (ODocument) record;
+    if (esClient.isPartialUpdates()) {
+      final Set<String> fields = getUpdatedFields(iDocument);
+      if (fields != null)
+        updatedFields.put(iDocument, fields);
+      else
+        updatedFields.remove(iDocument);
+    }
+    return RESULT.RECORD_NOT_CHANGED;
+  }
 
-      final Set<String> syncFields = esClient.getSyncFields(doc);
-      if (syncFields == null)
-        return null;
+  @Override
+  public void onRecordAfterUpdate(ODocument iDocument) {
+    if (iDocument.getIdentity().getClusterId() == 0)
+      // THE INTERNAL CLUSTER CONTAINS THE SCHEMA: IT COULD HAVE BEEN CHANGED
+      esClient.invalidateRules();
 
-      map = new HashMap<String, Object>();
+    // THE RECORD COULD BE PROJECTED IN THE DOCUMENTS OF THE RECORDS LINKING IT
+    invalidateProjection(iDocument.getIdentity());
 
-      map.put("@rid", doc.getIdentity());
-      map.put("@class", doc.getClassName());
+    replicateIndex(iDocument, false);
+  }
 
-      for (String f : doc.fieldNames()) {
-        if (!syncFields.isEmpty() && !syncFields.contains(f))
-          // SKIP FIELD
-          continue;
+  @Override
+  public void onRecordAfterDelete(ODocument iDocument) {
+    invalidateProjection(iDocument.getIdentity());
 
-        final Object value = doc.field(f);
+    if (iDocument.getClassName() == null)
+      return;
 
-        if (value instanceof ORidBag) {
-          final List<OIdentifiable> list = new ArrayList<OIdentifiable>();
-          for (Iterator<OIdentifiable> it = ((ORidBag) value).rawIterator(); it.hasNext(); ) {
-            list.add(it.next());
-          }
-          map.put(f, list);
+    if (!esClient.isOwner(iDocument.getIdentity().getClusterId())) {
+      // INDEXED BY ANOTHER SERVER
+      esClient.getSearchCache().onChange(iDocument.getClassName());
+      return;
+    }
 
-        } else if (value instanceof ORecord && ((ORecord) value).getIdentity().isPersistent()) {
-          map.put(f, ((ORecord) value).getIdentity());
-        } else
-          map.put(f, value);
-      }
+    final long start = System.nanoTime();
+
+    final String indexName = getIndexName(iDocument.getClassName());
+    replicate(new DeleteRequest(indexName, iDocument.getClassName(), iDocument.getIdentity().toString()));
+    sendLinks(iDocument, indexName, false, null);
+
+    final String rebuildIndex = esClient.getRebuildIndex(iDocument.getClassName());
+    if (rebuildIndex != null)
+      replicate(new DeleteRequest(rebuildIndex, iDocument.getClassName(), iDocument.getIdentity().toString())
+          .versionType(VersionType.EXTERNAL_GTE).version(iDocument.getVersion()));
+
+    esClient.getMetrics().onHook(iDocument.getClassName(), true, System.nanoTime() - start);
+  }
+
+  @Override
+  public void onAfterTxCommit(final ODatabase iDatabase) {
+    if (!txProjected.isEmpty()) {
+      // A CONCURRENT LOAD COULD HAVE CACHED THE PREVIOUS VALUES BEFORE THE COMMIT
+      for (ORID rid : txProjected)
+        esClient.getProjections().onChange(rid);
+      txProjected.clear();
     }
 
-    return map;
+    if (txChanges.isEmpty())
+      return;
+
+    try {
+      for (ActionRequest request : txChanges)
+        invalidateSearches(request);
+      esClient.getReplicator().replicate(txChanges);
+    } finally {
+      txChanges.clear();
+    }
   }
 
   @Override
-  public void onRecordAfterCreate(final ODocument iDocument) {
-    esClient.getClient().prepareIndex(getIndexName(), iDocument.getClassName(), iDocument.getIdentity().toString())
-        .setSource(iDocument.toMap()).get();
+  public void onAfterTxRollback(final ODatabase iDatabase) {
+    txChanges.clear();
+    linkChanges.clear();
+    updatedFields.clear();
+    txProjected.clear();
   }
 
   @Override
-  public void onRecordAfterUpdate(ODocument iDocument) {
-    esClient.getClient().prepareIndex(getIndexName(), iDocument.getClassName(), iDocument.getIdentity().toString())
-        .setSource(iDocument.toMap()).get();
+  public void onBeforeTxRollback(final ODatabase iDatabase) {
   }
 
   @Override
-  public void onRecordAfterDelete(ODocument iDocument) {
-    esClient.getClient().delete(new DeleteRequest(getIndexName(), iDocument.getClassName(), iDocument.getIdentity().toString()));
+  public void onBeforeTxBegin(final ODatabase iDatabase) {
+  }
+
+  @Override
+  public void onBeforeTxCommit(final ODatabase iDatabase) {
+  }
+
+  @Override
+  public void onCreate(final ODatabase iDatabase) {
+  }
+
+  @Override
+  public void onDelete(final ODatabase iDatabase) {
+  }
+
+  @Override
+  public void onOpen(final ODatabase iDatabase) {
+  }
+
+  @Override
+  public void onClose(final ODatabase iDatabase) {
+    txChanges.clear();
+    linkChanges.clear();
+    updatedFields.clear();
+    txProjected.clear();
+  }
+
+  @Override
+  public void onBeforeCommand(final OCommandRequestText iCommand, final OCommandExecutor executor) {
+  }
+
+  @Override
+  public void onAfterCommand(final OCommandRequestText iCommand, final OCommandExecutor executor, final Object result) {
+  }
+
+  @Override
+  public boolean onCorruptionRepairDatabase(final ODatabase iDatabase, final String iReason, final String iWhatWillbeFixed) {
+    return false;
   }
 
   @Override
   public DISTRIBUTED_EXECUTION_MODE getDistributedExecutionMode() {
+    // THE HOOKS RUN ON EVERY SERVER: IN 'owner' MODE THE OWNERSHIP LETS ONLY ONE OF THEM INDEX A RECORD (SEE isOwner())
     return DISTRIBUTED_EXECUTION_MODE.BOTH;
   }
 
-  protected String getIndexName() {
-    return dbName.toLowerCase();
+  /**
+   * Replicates the document to the index of its class and, if the class is being rebuilt, also to the new index. An update sends
+   * only the changed fields, if they are known, while the new index always receives the whole document. The links with the child
+   * policy are all indexed for a new document, while for an update only the links added and removed are replicated.
+   */
+  protected void replicateIndex(final ODocument iDocument, final boolean created) {
+    final long start = System.nanoTime();
+
+    final List<LinkChange> changes = linkChanges.isEmpty() ? null : linkChanges.remove(iDocument);
+    final Set<String> fields = updatedFields.isEmpty() ? null : updatedFields.remove(iDocument);
+
+    if (!esClient.isOwner(iDocument.getIdentity().getClusterId())) {
+      // INDEXED BY ANOTHER SERVER
+      esClient.getSearchCache().onChange(iDocument.getClassName());
+      return;
+    }
+
+    final DocumentRequest request =
+        fields != null && !created ? createUpdateRequest(iDocument, fields) : createIndexRequest(iDocument, null, false);
+    if (request == null)
+      return;
+
+    replicate((ActionRequest) request);
+    replicateLinks(iDocument, request.index(), created, changes);
+
+    final String rebuildIndex = esClient.getRebuildIndex(iDocument.getClassName());
+    if (rebuildIndex != null) {
+      replicate(createIndexRequest(iDocument, rebuildIndex, true));
+      replicateLinks(iDocument, rebuildIndex, created, changes);
+    }
+
+    esClient.getMetrics().onHook(iDocument.getClassName(), false, System.nanoTime() - start);
   }
 
-  public void dropClass(final String className) {
-    SearchResponse scrollResponse = esClient.getClient().prepareSearch(getIndexName()).setTypes(className)
-        .setSearchType(SearchType.SCAN).setScroll(new TimeValue(60000)).setQuery(QueryBuilders.matchAllQuery()).setSize(100).get();
-    final BulkRequestBuilder bulkRequestBuilder = esClient.getClient().prepareBulk().setRefresh(true);
-    while (true) {
-      if (scrollResponse.getHits().getHits().length == 0) {
-        break;
+  protected void replicateLinks(final ODocument doc, final String index, final boolean created, final List<LinkChange> changes) {
+    if (created)
+      sendLinks(doc, index, true, null);
+    else if (changes != null)
+      for (LinkChange change : changes)
+        replicate(createLinkRequest(doc, index, change.fieldName, change.link, change.added));
+  }
+
+  /**
+   * Indexes (or deletes) the child documents of all the links with the child policy, through the bulk if not null, otherwise
+   * through the replication. The links are browsed without loading the records.
+   */
+  protected void sendLinks(final ODocument doc, final String index, final boolean added, final OElasticSearchBulk bulk) {
+    if (!esClient.getLinkPolicies().hasChildPolicies())
+      return;
+
+    final Set<String> syncFields = esClient.getSyncFields(doc);
+    if (syncFields == null)
+      return;
+
+    for (String f : doc.fieldNames()) {
+      final Object value = doc.rawField(f);
+      if (!(value instanceof ORecordLazyMultiValue) || value instanceof Map || !isChildLinks(doc, syncFields, f))
+        continue;
+
+      for (Iterator<OIdentifiable> it = ((ORecordLazyMultiValue) value).rawIterator(); it.hasNext(); ) {
+        final ActionRequest request = createLinkRequest(doc, index, f, it.next(), added);
+        if (bulk != null)
+          bulk.add(request);
+        else
+          replicate(request);
+      }
+    }
+  }
+
+  /**
+   * Returns the links added and removed from the collections with the child policy, or null if none changed. If a collection has
+   * been replaced, all its previous links are removed and all the current ones added.
+   */
+  protected List<LinkChange> getLinkChanges(final ODocument doc) {
+    final Set<String> syncFields = esClient.getSyncFields(doc);
+    if (syncFields == null)
+      return null;
+
+    List<LinkChange> changes = null;
+    for (String f : doc.getDirtyFields()) {
+      if (!isChildLinks(doc, syncFields, f))
+        continue;
+
+      if (changes == null)
+        changes = new ArrayList<LinkChange>();
+
+      final OMultiValueChangeTimeLine<Object, Object> timeLine = doc.getCollectionTimeLine(f);
+      if (timeLine != null) {
+        for (OMultiValueChangeEvent<Object, Object> event : timeLine.getMultiValueChangeEvents()) {
+          switch (event.getChangeType()) {
+          case ADD:
+            addLinkChange(changes, f, event.getValue(), true);
+            break;
+          case REMOVE:
+            addLinkChange(changes, f, event.getOldValue() != null ? event.getOldValue() : event.getKey(), false);
+            break;
+          case UPDATE:
+            addLinkChange(changes, f, event.getOldValue(), false);
+            addLinkChange(changes, f, event.getValue(), true);
+            break;
+          default:
+            break;
+          }
+        }
+      } else {
+        addLinkChanges(changes, f, doc.getOriginalValue(f), false);
+        addLinkChanges(changes, f, doc.rawField(f), true);
       }
+    }
+    return changes;
+  }
+
+  /**
+   * Returns the changed fields to synchronize, or null if the whole document must be indexed: all its fields changed, an object
+   * changed or the document contains embedded documents, whose changes are not tracked by the record. Elastic Search merges the
+   * objects of a partial update with the current ones, so the keys removed from a map or a projected link would remain. The fields
+   * with the skip and child link policies are excluded: their changes are not part of the document.
+   */
+  protected Set<String> getUpdatedFields(final ODocument doc) {
+    final Set<String> syncFields = esClient.getSyncFields(doc);
+    if (syncFields == null)
+      return null;
+
+    final String[] dirtyFields = doc.getDirtyFields();
+    if (dirtyFields.length >= doc.fields())
+      return null;
+
+    for (String f : doc.fieldNames())
+      if ((syncFields.isEmpty() || syncFields.contains(f)) && containsEmbedded(doc.rawField(f)))
+        return null;
+
+    final Set<String> fields = new HashSet<String>();
+    for (String f : dirtyFields) {
+      if (!syncFields.isEmpty() && !syncFields.contains(f))
+        continue;
+
+      final OElasticSearchLinkPolicies.Policy policy = esClient.getLinkPolicies().getPolicy(doc, f);
+      if (policy != null && (policy.getType() == OElasticSearchLinkPolicies.TYPE.SKIP
+          || policy.getType() == OElasticSearchLinkPolicies.TYPE.CHILD))
+        continue;
+
+      if (isObject(doc, f))
+        return null;
+
+      fields.add(f);
+    }
+    return fields;
+  }
+
+  /**
+   * Returns true if the field is written as an object: a map or a projected link.
+   */
+  protected boolean isObject(final ODocument doc, final String fieldName) {
+    final Object value = doc.rawField(fieldName);
+    return value instanceof Map
+        || value instanceof OIdentifiable && esClient.getProjections().getFields(doc, fieldName) != null;
+  }
+
+  /**
+   * Returns true if the value is an embedded document or a collection or map containing embedded documents. The collections of
+   * links are not browsed.
+   */
+  protected static boolean containsEmbedded(final Object value) {
+    if (value instanceof ODocument)
+      return OElasticSearchSerializer.isEmbedded((ODocument) value);
+    if (value instanceof ORecordLazyMultiValue)
+      return false;
+
+    final Iterable<?> items =
+        value instanceof Map ? ((Map<?, ?>) value).values() : value instanceof Iterable ? (Iterable<?>) value : null;
+    if (items != null)
+      for (Object item : items)
+        if (item instanceof ODocument && OElasticSearchSerializer.isEmbedded((ODocument) item))
+          return true;
+    return false;
+  }
+
+  protected boolean isChildLinks(final ODocument doc, final Set<String> syncFields, final String fieldName) {
+    if (!syncFields.isEmpty() && !syncFields.contains(fieldName))
+      return false;
+    final OElasticSearchLinkPolicies.Policy policy = esClient.getLinkPolicies().getPolicy(doc, fieldName);
+    return policy != null && policy.getType() == OElasticSearchLinkPolicies.TYPE.CHILD;
+  }
 
-      for (SearchHit hit : scrollResponse.getHits().getHits()) {
-        bulkRequestBuilder.add(esClient.getClient().prepareDelete(getIndexName(), className, hit.getId()));
+  /**
+   * Creates the request to index or delete the child document of a link, routed as its parent: "@link" is the link and "@parent"
+   * the record with the collection.
+   */
+  protected ActionRequest createLinkRequest(final ODocument doc, final String index, final String fieldName,
+      final OIdentifiable link, final boolean added) {
+    final String parent = doc.getIdentity().toString();
+    final String type = esClient.getLinkType(doc.getClassName(), fieldName);
+    final String id = parent + "/" + link.getIdentity();
+
+    if (!added)
+      return new DeleteRequest(index, type, id).routing(parent);
+
+    esClient.createLinkType(index, type);
+    return new IndexRequest(index, type, id).routing(parent).contentType(esClient.getSerializer().getContentType())
+        .source("@link", link.getIdentity().toString(), "@parent", parent);
+  }
+
+  private static void addLinkChange(final List<LinkChange> changes, final String fieldName, final Object link,
+      final boolean added) {
+    if (link instanceof OIdentifiable)
+      changes.add(new LinkChange(fieldName, (OIdentifiable) link, added));
+  }
+
+  private static void addLinkChanges(final List<LinkChange> changes, final String fieldName, final Object links,
+      final boolean added) {
+    if (links instanceof ORecordLazyMultiValue && !(links instanceof Map))
+      for (Iterator<OIdentifiable> it = ((ORecordLazyMultiValue) links).rawIterator(); it.hasNext(); )
+        changes.add(new LinkChange(fieldName, it.next(), added));
+  }
+
+  protected void replicate(final ActionRequest request) {
+    if (esClient.isTransactional()) {
+      final ODatabaseDocumentInternal db = ODatabaseRecordThreadLocal.INSTANCE.getIfDefined();
+      if (db != null && db.getTransaction().isActive()) {
+        // SEND IT AT COMMIT TIME
+        txChanges.add(request);
+        return;
       }
+    }
 
-      scrollResponse = esClient.getClient().prepareSearchScroll(scrollResponse.getScrollId()).setScroll(new TimeValue(60000)).get();
+    invalidateSearches(request);
+    esClient.getReplicator().replicate(request);
+  }
+
+  /**
+   * Removes the changed record from the projection cache. Inside a transaction it is removed again after the commit.
+   */
+  protected void invalidateProjection(final ORID rid) {
+    final OElasticSearchProjections projections = esClient.getProjections();
+    if (!projections.isProjected(rid))
+      return;
+
+    projections.onChange(rid);
+    final ODatabaseDocumentInternal db = ODatabaseRecordThreadLocal.INSTANCE.getIfDefined();
+    if (db != null && db.getTransaction().isActive())
+      txProjected.add(rid.copy());
+  }
+
+  /**
+   * Invalidates the cached searches on the class of the changed record.
+   */
+  protected void invalidateSearches(final ActionRequest request) {
+    esClient.getSearchCache().onChange(request instanceof DocumentRequest ? ((DocumentRequest) request).type() : null);
+  }
+
+  protected String getIndexName(final String className) {
+    return esClient.getIndexName(className);
+  }
+
+  /**
+   * Removes the documents of a class. With the CLASS layout its indexes are deleted, otherwise the documents are deleted through a
+   * bulk, so the deletes are sent in bounded bulk requests.
+   */
+  public void dropClass(final String className) {
+    esClient.getSearchCache().onChange(className);
+
+    if (!esClient.isCoordinator())
+      // DROPPED BY ANOTHER SERVER
+      return;
+
+    if (esClient.getLayout() == OElasticSearchDatabaseConfiguration.LAYOUT.CLASS) {
+      esClient.dropClassIndexes(className);
+      return;
     }
-    if (bulkRequestBuilder.numberOfActions() > 0) {
-      bulkRequestBuilder.get();
+
+    final String indexName = getIndexName(className);
+    final List<String> types = new ArrayList<String>();
+    types.add(className);
+    if (esClient.getLinkPolicies().hasChildPolicies())
+      types.addAll(esClient.getLinkTypes(indexName, className));
+
+    SearchResponse scrollResponse = esClient.getClient().prepareSearch(indexName).setTypes(types.toArray(new String[types.size()]))
+        .setSearchType(SearchType.SCAN).setScroll(new TimeValue(60000)).setQuery(QueryBuilders.matchAllQuery()).setSize(100).get();
+
+    final OElasticSearchBulk bulk = createBulk(null);
+    try {
+      while (true) {
+        if (scrollResponse.getHits().getHits().length == 0) {
+          break;
+        }
+
+        for (SearchHit hit : scrollResponse.getHits().getHits()) {
+          final DeleteRequest delete = new DeleteRequest(indexName, hit.getType(), hit.getId());
+          final int separator = hit.getId().indexOf('/');
+          if (separator > -1)
+            // CHILD DOCUMENT OF A LINK, ROUTED AS ITS PARENT
+            delete.routing(hit.getId().substring(0, separator));
+          bulk.add(delete);
+        }
+
+        scrollResponse = esClient.getClient().prepareSearchScroll(scrollResponse.getScrollId()).setScroll(new TimeValue(60000))
+            .get();
+      }
+    } finally {
+      bulk.close();
     }
   }
 
   public void drop() {
-    esClient.getClient().admin().indices().delete(new DeleteIndexRequest(getIndexName())).actionGet();
+    if (esClient.isCoordinator())
+      esClient.dropIndexes();
   }
 }
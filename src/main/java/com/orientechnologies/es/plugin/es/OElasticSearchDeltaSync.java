@@ -0,0 +1,159 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.common.io.OIOUtils;
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.OStorage;
+import com.orientechnologies.orient.core.storage.impl.local.OAbstractPaginatedStorage;
+import com.orientechnologies.orient.core.storage.impl.local.paginated.wal.OLogSequenceNumber;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the records created, updated and deleted after a position of the storage write ahead log (LSN). The LSN reached by the
+ * last full or delta synchronization is the high-water mark of the database, saved next to the configuration. It requires the
+ * global setting {@code storage.trackChangedRecordsInWAL} set to true.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchDeltaSync {
+  public static final String CHECKPOINT = "elastic-search-delta.json";
+
+  private final OElasticSearchPlugin es;
+  private final String               dbName;
+
+  public OElasticSearchDeltaSync(final OElasticSearchPlugin es, final String dbName) {
+    this.es = es;
+    this.dbName = dbName;
+  }
+
+  /**
+   * Returns the current position of the write ahead log, or null if the storage has no write ahead log.
+   */
+  public static OLogSequenceNumber getCurrentLSN(final ODatabaseDocumentTx db) {
+    final OStorage storage = db.getStorage().getUnderlying();
+    if (storage instanceof OAbstractPaginatedStorage)
+      return ((OAbstractPaginatedStorage) storage).getLSN();
+    return null;
+  }
+
+  /**
+   * Returns the high-water mark of the last synchronization, or null if the database has never been fully synchronized.
+   */
+  public OLogSequenceNumber getCheckpoint() throws IOException {
+    final File file = getCheckpointFile();
+    if (!file.exists())
+      return null;
+
+    final ODocument doc = new ODocument().fromJSON(OIOUtils.readFileAsString(file));
+    return new OLogSequenceNumber(((Number) doc.field("segment")).longValue(), ((Number) doc.field("position")).longValue());
+  }
+
+  public void saveCheckpoint(final OLogSequenceNumber lsn) throws IOException {
+    OIOUtils.writeFile(getCheckpointFile(),
+        new ODocument().fields("segment", lsn.getSegment(), "position", lsn.getPosition(), "savedOn", System.currentTimeMillis())
+            .toJSON());
+  }
+
+  /**
+   * Collects the records changed after the high-water mark in the two lists. Returns the position of the write ahead log reached.
+   */
+  public OLogSequenceNumber collectChanges(final ODatabaseDocumentTx db, final List<ORID> changed, final List<ORID> deleted)
+      throws IOException {
+    if (!OGlobalConfiguration.STORAGE_TRACK_CHANGED_RECORDS_IN_WAL.getValueAsBoolean())
+      throw new IllegalStateException(
+          "Delta synchronization requires the setting '" + OGlobalConfiguration.STORAGE_TRACK_CHANGED_RECORDS_IN_WAL.getKey()
+              + "' set to true");
+
+    final OStorage storage = db.getStorage().getUnderlying();
+    if (!(storage instanceof OAbstractPaginatedStorage))
+      throw new IllegalStateException("Delta synchronization is not supported by storage " + storage.getType());
+
+    final OLogSequenceNumber checkpoint = getCheckpoint();
+    if (checkpoint == null)
+      throw new IllegalStateException("Database " + dbName + " has no delta checkpoint: execute a full synchronization first");
+
+    // THE STORAGE EXPORTS THE CHANGED RECORDS TO A STREAM: ONLY THE RIDS ARE READ BACK
+    // EVERY JOB HAS ITS OWN FILE: DELTA JOBS CAN RUN CONCURRENTLY
+    final File changes = File.createTempFile("es-delta-", ".tmp", new File(es.getDatabasePath(dbName)));
+    try {
+      final OutputStream out = new BufferedOutputStream(new FileOutputStream(changes));
+      final OLogSequenceNumber end;
+      try {
+        end = ((OAbstractPaginatedStorage) storage).recordsChangedAfterLSN(checkpoint, out, Collections.<String>emptySet(), null);
+      } finally {
+        out.close();
+      }
+
+      if (end == null)
+        throw new IllegalStateException("The write ahead log of database " + dbName + " does not contain the delta checkpoint "
+            + checkpoint + " anymore: execute a full synchronization");
+
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(changes)));
+      try {
+        final long count = in.readLong();
+        for (long i = 0; i < count; ++i) {
+          final ORecordId rid = new ORecordId(in.readInt(), in.readLong());
+          if (in.readBoolean())
+            deleted.add(rid);
+          else {
+            // SKIP VERSION, TYPE AND CONTENT
+            in.readInt();
+            in.readByte();
+            final int length = in.readInt();
+            if (in.skipBytes(length) != length)
+              throw new IOException("Unexpected end of the changed records of database " + dbName);
+            changed.add(rid);
+          }
+        }
+      } finally {
+        in.close();
+      }
+
+      OLogManager.instance()
+          .info(this, "ES plugin: found %d changed and %d deleted records after LSN %s in database %s", changed.size(),
+              deleted.size(), checkpoint, dbName);
+
+      return end;
+
+    } finally {
+      changes.delete();
+    }
+  }
+
+  protected File getCheckpointFile() {
+    return new File(es.getDatabasePath(dbName), CHECKPOINT);
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram with power of 2 buckets: recording a value costs two atomic increments. The percentiles are approximated by
+ * the upper bound of the bucket, so they are at most 2 times the real value.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchHistogram {
+  private static final int BUCKETS = 48;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong      count   = new AtomicLong();
+  private final AtomicLong      sum     = new AtomicLong();
+  private final AtomicLong      max     = new AtomicLong();
+
+  public void record(final long value) {
+    final long v = Math.max(0, value);
+    buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v)));
+    count.incrementAndGet();
+    sum.addAndGet(v);
+
+    long currentMax = max.get();
+    while (v > currentMax && !max.compareAndSet(currentMax, v))
+      currentMax = max.get();
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Returns the upper bound of the bucket containing the percentile (0-100).
+   */
+  public long getPercentile(final double percentile) {
+    final long total = count.get();
+    if (total == 0)
+      return 0;
+
+    final long threshold = (long) Math.ceil(total * percentile / 100d);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      seen += buckets.get(i);
+      if (seen >= threshold)
+        return Math.min(i == 0 ? 0 : 1l << i, max.get());
+    }
+    return max.get();
+  }
+
+  public ODocument toDocument() {
+    final long total = count.get();
+    return new ODocument()
+        .fields("count", total, "avg", total > 0 ? sum.get() / total : 0, "p50", getPercentile(50), "p90", getPercentile(90), "p99",
+            getPercentile(99), "max", max.get());
+  }
+}
@@ -0,0 +1,508 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.common.log.OLogManager;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.index.VersionType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Durable outbox of the changes to replicate to Elastic Search. The changes are appended to memory-mapped segment files under the
+ * database directory and a background thread replays them in bulk, saving a checkpoint of the last acknowledged change. If Elastic
+ * Search is slow or down the changes stay in the journal and the replay resumes from the checkpoint, even after a restart.
+ * <p>
+ * Every entry is stored as: length (int), CRC32 of the content (int), content. The length is written last, so a zero length marks
+ * the end of the written part of a segment.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchJournal {
+  public static final  String DIRECTORY      = "es-journal";
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String CHECKPOINT     = "checkpoint";
+  private static final int    HEADER_SIZE    = 8;
+  private static final byte   OP_INDEX       = 0;
+  private static final byte   OP_DELETE      = 1;
+  private static final byte   OP_INDEX_VER   = 2;
+  private static final byte   OP_DELETE_VER  = 3;
+  private static final byte   OP_UPDATE      = 4;
+
+  private final OElasticSearchReplicator        replicator;
+  private final File                            directory;
+  private final int                             segmentSize;
+  private final int                             maxSegments;
+  private final int                             replayBatchSize;
+  private final int                             replayRate;
+  private final long                            maxLatency;
+  private final TreeMap<Long, MappedByteBuffer> segments   = new TreeMap<Long, MappedByteBuffer>();
+  private final RandomAccessFile                checkpointFile;
+  private final Thread                          replayer;
+  private volatile boolean                      running    = true;
+
+  private long    headSegment;
+  private int     headOffset;
+  private boolean headDirty;
+  private long    checkpointSegment;
+  private int     checkpointOffset;
+
+  private final AtomicLong appended   = new AtomicLong();
+  private final AtomicLong replayed   = new AtomicLong();
+  private final AtomicLong rolledOver = new AtomicLong();
+  private volatile String  lastError;
+
+  public OElasticSearchJournal(final OElasticSearchReplicator replicator, final String databasePath, final int segmentSize,
+      final long maxSize, final int replayBatchSize, final int replayRate, final long maxLatency) throws IOException {
+    this.replicator = replicator;
+    this.directory = new File(databasePath, DIRECTORY);
+    this.segmentSize = segmentSize;
+    this.maxSegments = (int) Math.max(2, maxSize / segmentSize);
+    this.replayBatchSize = replayBatchSize;
+    this.replayRate = replayRate;
+    this.maxLatency = maxLatency;
+
+    if (!directory.exists() && !directory.mkdirs())
+      throw new IOException("Cannot create ES journal directory " + directory);
+
+    checkpointFile = new RandomAccessFile(new File(directory, CHECKPOINT), "rw");
+    load();
+
+    replayer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        replay();
+      }
+    }, "OrientDB ES Journal Replayer (" + directory.getParentFile().getName() + ")");
+    replayer.setDaemon(true);
+    replayer.start();
+  }
+
+  /**
+   * Appends a change to the journal. If the journal is full and overflow is true, the change is written in a new segment beyond the
+   * maximum size, so it stays after the older changes. Otherwise, if block is true, waits until the replayer frees a segment, or
+   * returns false.
+   */
+  public boolean append(final ActionRequest request, final boolean block, final boolean overflow)
+      throws IOException, InterruptedException {
+    final byte[] content = serialize(request);
+    if (content == null)
+      return false;
+
+    if (HEADER_SIZE + content.length > segmentSize) {
+      OLogManager.instance().warn(this, "ES journal: change of %d bytes is bigger than the segment size (%d)", content.length,
+          segmentSize);
+      return false;
+    }
+
+    final CRC32 crc = new CRC32();
+    crc.update(content);
+
+    synchronized (this) {
+      if (headOffset + HEADER_SIZE + content.length > segmentSize) {
+        // ROLL OVER TO A NEW SEGMENT
+        while (segments.size() >= maxSegments && !overflow) {
+          if (!block || !running)
+            return false;
+          wait();
+        }
+
+        segments.get(headSegment).force();
+        headSegment++;
+        headOffset = 0;
+        segments.put(headSegment, mapSegment(headSegment));
+        rolledOver.incrementAndGet();
+      }
+
+      final MappedByteBuffer buffer = segments.get(headSegment);
+      buffer.position(headOffset + HEADER_SIZE);
+      buffer.put(content);
+      buffer.putInt(headOffset + 4, (int) crc.getValue());
+      buffer.putInt(headOffset, content.length);
+
+      headOffset += HEADER_SIZE + content.length;
+      headDirty = true;
+      appended.incrementAndGet();
+      notifyAll();
+    }
+    return true;
+  }
+
+  public void close() {
+    running = false;
+    synchronized (this) {
+      notifyAll();
+    }
+    try {
+      replayer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    synchronized (this) {
+      for (MappedByteBuffer buffer : segments.values())
+        buffer.force();
+      segments.clear();
+    }
+
+    try {
+      checkpointFile.close();
+    } catch (IOException e) {
+      OLogManager.instance().error(this, "ES journal: error on closing the checkpoint file", e);
+    }
+  }
+
+  public int getSegmentCount() {
+    synchronized (this) {
+      return segments.size();
+    }
+  }
+
+  /**
+   * Returns the disk space used by the journal in bytes.
+   */
+  public long getSize() {
+    return (long) getSegmentCount() * segmentSize;
+  }
+
+  /**
+   * Returns the bytes of changes written but not acknowledged by Elastic Search yet.
+   */
+  public long getPendingBytes() {
+    synchronized (this) {
+      return (headSegment - checkpointSegment) * segmentSize + headOffset - checkpointOffset;
+    }
+  }
+
+  public long getAppended() {
+    return appended.get();
+  }
+
+  public long getReplayed() {
+    return replayed.get();
+  }
+
+  public long getRolledOver() {
+    return rolledOver.get();
+  }
+
+  public String getLastError() {
+    return lastError;
+  }
+
+  protected void replay() {
+    final List<ActionRequest> batch = new ArrayList<ActionRequest>(replayBatchSize);
+    long retryDelay = 100;
+
+    while (running) {
+      final long[] position;
+      try {
+        position = read(batch);
+      } catch (InterruptedException e) {
+        break;
+      }
+
+      if (batch.isEmpty())
+        continue;
+
+      final long start = System.currentTimeMillis();
+      if (!replicator.send(batch, true)) {
+        // ES NOT AVAILABLE: RETRY THE SAME CHANGES LATER
+        lastError = "Bulk request failed at " + new Date();
+        batch.clear();
+        if (!running)
+          break;
+        sleep(retryDelay);
+        retryDelay = Math.min(retryDelay * 2, 30000);
+        continue;
+      }
+
+      retryDelay = 100;
+      replayed.addAndGet(batch.size());
+      replicator.getMetrics().onAcknowledged(batch.size());
+      checkpoint(position[0], (int) position[1]);
+
+      if (replayRate > 0) {
+        final long minElapsed = batch.size() * 1000l / replayRate;
+        final long elapsed = System.currentTimeMillis() - start;
+        if (elapsed < minElapsed)
+          sleep(minElapsed - elapsed);
+      }
+
+      batch.clear();
+    }
+  }
+
+  /**
+   * Reads up to replayBatchSize changes starting from the checkpoint, waiting up to maxLatency for new changes. Returns the
+   * position after the last change read.
+   */
+  protected synchronized long[] read(final List<ActionRequest> batch) throws InterruptedException {
+    long segment = checkpointSegment;
+    int offset = checkpointOffset;
+
+    if (segment == headSegment && offset == headOffset && running)
+      wait(maxLatency);
+
+    if (headDirty) {
+      segments.get(headSegment).force();
+      headDirty = false;
+    }
+
+    while (batch.size() < replayBatchSize) {
+      final MappedByteBuffer buffer = segments.get(segment);
+      if (buffer == null)
+        break;
+
+      final int length = offset + HEADER_SIZE <= segmentSize ? buffer.getInt(offset) : 0;
+      if (length == 0) {
+        if (segment == headSegment)
+          break;
+        // END OF SEGMENT
+        segment++;
+        offset = 0;
+        continue;
+      }
+
+      final byte[] content = new byte[length];
+      final ByteBuffer view = buffer.duplicate();
+      view.position(offset + HEADER_SIZE);
+      view.get(content);
+      offset += HEADER_SIZE + length;
+
+      try {
+        batch.add(deserialize(content));
+      } catch (IOException e) {
+        OLogManager.instance().error(this, "ES journal: skipped unreadable change at segment %d", e, segment);
+      }
+    }
+
+    return new long[] { segment, offset };
+  }
+
+  protected synchronized void checkpoint(final long segment, final int offset) {
+    try {
+      checkpointFile.seek(0);
+      checkpointFile.writeLong(segment);
+      checkpointFile.writeInt(offset);
+    } catch (IOException e) {
+      OLogManager.instance().error(this, "ES journal: error on saving the checkpoint", e);
+    }
+
+    checkpointSegment = segment;
+    checkpointOffset = offset;
+
+    // REMOVE THE SEGMENTS COMPLETELY ACKNOWLEDGED
+    boolean freed = false;
+    while (!segments.isEmpty() && segments.firstKey() < checkpointSegment) {
+      final long id = segments.pollFirstEntry().getKey();
+      if (!getSegmentFile(id).delete())
+        OLogManager.instance().warn(this, "ES journal: cannot delete segment file %s", getSegmentFile(id));
+      freed = true;
+    }
+    if (freed)
+      notifyAll();
+  }
+
+  protected void load() throws IOException {
+    final File[] files = directory.listFiles();
+    if (files != null)
+      for (File f : files) {
+        final String name = f.getName();
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          final long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+          segments.put(id, mapSegment(id));
+        }
+      }
+
+    if (checkpointFile.length() >= 12) {
+      checkpointSegment = checkpointFile.readLong();
+      checkpointOffset = checkpointFile.readInt();
+    } else if (!segments.isEmpty()) {
+      checkpointSegment = segments.firstKey();
+      checkpointOffset = 0;
+    }
+
+    // DELETE THE SEGMENTS ALREADY ACKNOWLEDGED BEFORE THE SHUTDOWN
+    for (Map.Entry<Long, MappedByteBuffer> entry : new ArrayList<Map.Entry<Long, MappedByteBuffer>>(segments.entrySet()))
+      if (entry.getKey() < checkpointSegment) {
+        segments.remove(entry.getKey());
+        getSegmentFile(entry.getKey()).delete();
+      }
+
+    if (segments.isEmpty()) {
+      headSegment = checkpointSegment;
+      headOffset = 0;
+      segments.put(headSegment, mapSegment(headSegment));
+      if (checkpointOffset > 0)
+        // SEGMENT LOST: RESTART FROM ITS BEGINNING
+        checkpointOffset = 0;
+    } else {
+      headSegment = segments.lastKey();
+      headOffset = recover(segments.get(headSegment));
+      if (checkpointSegment == headSegment && checkpointOffset > headOffset)
+        checkpointOffset = headOffset;
+    }
+
+    if (getPendingBytes() > 0)
+      OLogManager.instance().info(this, "ES journal: found %d bytes of changes to replay in %s", getPendingBytes(), directory);
+  }
+
+  /**
+   * Finds the end of the valid entries of the last segment and clears what follows a partially written entry.
+   */
+  protected int recover(final MappedByteBuffer buffer) {
+    int offset = 0;
+    while (offset + HEADER_SIZE <= segmentSize) {
+      final int length = buffer.getInt(offset);
+      if (length <= 0 || offset + HEADER_SIZE + length > segmentSize)
+        break;
+
+      final byte[] content = new byte[length];
+      final ByteBuffer view = buffer.duplicate();
+      view.position(offset + HEADER_SIZE);
+      view.get(content);
+
+      final CRC32 crc = new CRC32();
+      crc.update(content);
+      if ((int) crc.getValue() != buffer.getInt(offset + 4))
+        break;
+
+      offset += HEADER_SIZE + length;
+    }
+
+    for (int i = offset; i < segmentSize; i++)
+      buffer.put(i, (byte) 0);
+    buffer.force();
+
+    return offset;
+  }
+
+  protected MappedByteBuffer mapSegment(final long id) throws IOException {
+    final RandomAccessFile file = new RandomAccessFile(getSegmentFile(id), "rw");
+    try {
+      file.setLength(segmentSize);
+      return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    } finally {
+      file.close();
+    }
+  }
+
+  protected File getSegmentFile(final long id) {
+    return new File(directory, SEGMENT_PREFIX + String.format("%012d", id) + SEGMENT_SUFFIX);
+  }
+
+  protected static byte[] serialize(final ActionRequest request) throws IOException {
+    final BytesStreamOutput out = new BytesStreamOutput();
+    if (request instanceof IndexRequest) {
+      final IndexRequest r = (IndexRequest) request;
+      final boolean versioned = r.versionType() == VersionType.EXTERNAL_GTE;
+      out.writeByte(versioned ? OP_INDEX_VER : OP_INDEX);
+      out.writeString(r.index());
+      out.writeString(r.type());
+      out.writeString(r.id());
+      // THE DOCUMENTS OF THE LINKS ARE ROUTED AS THEIR RECORD
+      out.writeOptionalString(r.routing());
+      if (versioned)
+        out.writeLong(r.version());
+      out.writeByteArray(r.source().toBytes());
+    } else if (request instanceof DeleteRequest) {
+      final DeleteRequest r = (DeleteRequest) request;
+      final boolean versioned = r.versionType() == VersionType.EXTERNAL_GTE;
+      out.writeByte(versioned ? OP_DELETE_VER : OP_DELETE);
+      out.writeString(r.index());
+      out.writeString(r.type());
+      out.writeString(r.id());
+      // THE DOCUMENTS OF THE LINKS ARE ROUTED AS THEIR RECORD
+      out.writeOptionalString(r.routing());
+      if (versioned)
+        out.writeLong(r.version());
+    } else if (request instanceof UpdateRequest) {
+      final UpdateRequest r = (UpdateRequest) request;
+      out.writeByte(OP_UPDATE);
+      out.writeString(r.index());
+      out.writeString(r.type());
+      out.writeString(r.id());
+      // THE DOCUMENTS OF THE LINKS ARE ROUTED AS THEIR RECORD
+      out.writeOptionalString(r.routing());
+      out.writeVInt(r.retryOnConflict());
+      out.writeByteArray(r.doc().source().toBytes());
+    } else
+      return null;
+
+    return out.bytes().toBytes();
+  }
+
+  protected static ActionRequest deserialize(final byte[] content) throws IOException {
+    final StreamInput in = StreamInput.wrap(content);
+    final byte op = in.readByte();
+    final String index = in.readString();
+    final String type = in.readString();
+    final String id = in.readString();
+    final String routing = in.readOptionalString();
+
+    switch (op) {
+    case OP_INDEX:
+      return new IndexRequest(index, type, id).routing(routing).source(in.readByteArray());
+    case OP_DELETE:
+      return new DeleteRequest(index, type, id).routing(routing);
+    case OP_INDEX_VER: {
+      final long version = in.readLong();
+      return new IndexRequest(index, type, id).routing(routing).versionType(VersionType.EXTERNAL_GTE).version(version)
+          .source(in.readByteArray());
+    }
+    case OP_DELETE_VER:
+      return new DeleteRequest(index, type, id).routing(routing).versionType(VersionType.EXTERNAL_GTE).version(in.readLong());
+    case OP_UPDATE: {
+      final int retries = in.readVInt();
+      return new UpdateRequest(index, type, id).routing(routing).retryOnConflict(retries).doc(in.readByteArray());
+    }
+    default:
+      throw new IOException("Unknown operation " + op);
+    }
+  }
+
+  private void sleep(final long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      running = false;
+    }
+  }
+}
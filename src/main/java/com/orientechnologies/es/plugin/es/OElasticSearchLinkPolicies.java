@@ -0,0 +1,213 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.record.impl.ODocumentInternal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Policies on the link collections (ORidBag, link lists and sets) of the classes, to avoid huge documents for the records with
+ * millions of links (super nodes):
+ * <ul>
+ * <li>all: all the links (default)</li>
+ * <li>count: only the number of links</li>
+ * <li>N: only the first N links</li>
+ * <li>skip: the field is not synchronized</li>
+ * <li>child: one child document per link, so a change of the collection sends only the links added or removed</li>
+ * </ul>
+ * The policies are set per class and field, a field name ending with '*' is a prefix and the class '*' means all the classes. The
+ * policies of a class apply also to its subclasses, unless they have their own policy for the field.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchLinkPolicies {
+  public enum TYPE {
+    ALL, COUNT, LIMIT, SKIP, CHILD
+  }
+
+  public static class Policy {
+    private final TYPE type;
+    private final int  limit;
+
+    public Policy(final TYPE type, final int limit) {
+      this.type = type;
+      this.limit = limit;
+    }
+
+    public TYPE getType() {
+      return type;
+    }
+
+    public int getLimit() {
+      return limit;
+    }
+  }
+
+  private static class Rule {
+    private final String  field;
+    private final boolean prefix;
+    private final Policy  policy;
+
+    private Rule(final String field, final Policy policy) {
+      this.prefix = field.endsWith("*");
+      this.field = prefix ? field.substring(0, field.length() - 1) : field;
+      this.policy = policy;
+    }
+
+    private boolean matches(final String fieldName) {
+      return prefix ? fieldName.startsWith(field) : fieldName.equals(field);
+    }
+  }
+
+  private static final Policy                     NONE     = new Policy(TYPE.ALL, -1);
+
+  private final Map<String, List<Rule>>           rules    = new HashMap<String, List<Rule>>();
+  private final ConcurrentHashMap<String, Policy> resolved = new ConcurrentHashMap<String, Policy>();
+  private final boolean                           child;
+
+  public OElasticSearchLinkPolicies(final ODocument configuration) {
+    boolean child = false;
+
+    final Object links = configuration.eval("links");
+    if (links instanceof ODocument) {
+      for (String className : ((ODocument) links).fieldNames()) {
+        final ODocument classPolicies = ((ODocument) links).field(className);
+        if (classPolicies == null)
+          continue;
+
+        final List<Rule> classRules = new ArrayList<Rule>();
+        // THE EXACT FIELD NAMES WIN OVER THE PREFIXES
+        for (String fieldName : classPolicies.fieldNames())
+          if (!fieldName.endsWith("*"))
+            classRules.add(new Rule(fieldName, parsePolicy(className, fieldName, classPolicies.field(fieldName))));
+        for (String fieldName : classPolicies.fieldNames())
+          if (fieldName.endsWith("*"))
+            classRules.add(new Rule(fieldName, parsePolicy(className, fieldName, classPolicies.field(fieldName))));
+
+        for (Rule r : classRules)
+          child |= r.policy.type == TYPE.CHILD;
+
+        rules.put(className, classRules);
+      }
+    }
+
+    this.child = child;
+  }
+
+  public boolean isEmpty() {
+    return rules.isEmpty();
+  }
+
+  /**
+   * Returns true if at least a policy creates child documents.
+   */
+  public boolean hasChildPolicies() {
+    return child;
+  }
+
+  /**
+   * Returns the policy of a field of the document, or null if all the links are synchronized. The policies are resolved once per
+   * class and field.
+   */
+  public Policy getPolicy(final ODocument doc, final String fieldName) {
+    if (rules.isEmpty())
+      return null;
+
+    final String className = doc.getClassName();
+    final String key = className + "." + fieldName;
+
+    Policy policy = resolved.get(key);
+    if (policy == null) {
+      final OClass cls = className != null ? ODocumentInternal.getImmutableSchemaClass(doc) : null;
+      policy = cls != null ? resolve(cls, fieldName) : null;
+      if (policy == null)
+        policy = resolve("*", fieldName);
+      if (policy == null)
+        policy = NONE;
+      resolved.put(key, policy);
+    }
+
+    return policy.type == TYPE.ALL ? null : policy;
+  }
+
+  /**
+   * Returns the policy of a field of the class, or null if all the links are synchronized. Not cached.
+   */
+  public Policy getPolicy(final OClass cls, final String fieldName) {
+    if (rules.isEmpty())
+      return null;
+
+    Policy policy = resolve(cls, fieldName);
+    if (policy == null)
+      policy = resolve("*", fieldName);
+    return policy == null || policy.type == TYPE.ALL ? null : policy;
+  }
+
+  /**
+   * Forgets the resolved policies, after a change of the schema.
+   */
+  public void invalidate() {
+    resolved.clear();
+  }
+
+  protected Policy resolve(final OClass cls, final String fieldName) {
+    final Policy policy = resolve(cls.getName(), fieldName);
+    if (policy != null)
+      return policy;
+
+    for (OClass superClass : cls.getSuperClasses()) {
+      final Policy superPolicy = resolve(superClass, fieldName);
+      if (superPolicy != null)
+        return superPolicy;
+    }
+    return null;
+  }
+
+  protected Policy resolve(final String className, final String fieldName) {
+    final List<Rule> classRules = rules.get(className);
+    if (classRules != null)
+      for (Rule r : classRules)
+        if (r.matches(fieldName))
+          return r.policy;
+    return null;
+  }
+
+  protected static Policy parsePolicy(final String className, final String fieldName, final Object value) {
+    if (value instanceof Number)
+      return new Policy(TYPE.LIMIT, ((Number) value).intValue());
+
+    try {
+      final TYPE type = TYPE.valueOf(String.valueOf(value).toUpperCase());
+      if (type != TYPE.LIMIT)
+        return new Policy(type, -1);
+    } catch (IllegalArgumentException e) {
+      // NOT VALID
+    }
+    throw new IllegalArgumentException(
+        "Invalid link policy '" + value + "' for " + className + "." + fieldName + ": use all, count, skip, child or a number");
+  }
+}
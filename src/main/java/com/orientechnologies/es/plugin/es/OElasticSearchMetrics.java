@@ -0,0 +1,269 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.common.profiler.OAbstractProfiler;
+import com.orientechnologies.common.profiler.OProfiler;
+import com.orientechnologies.orient.core.Orient;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replication metrics of a database: operations by class and type, latency of the hooks, size and duration of the bulk requests,
+ * queue depth, replication lag and failed items. Recording is lock free, so the metrics are always on. The counters are also
+ * published to the OrientDB profiler when it is recording.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchMetrics {
+  private static final int  LAG_SAMPLING = 128;
+  private static final int  MAX_MARKS    = 1024;
+  private static final long RATE_WINDOW  = 10000;
+
+  /**
+   * Counter with the rate of the last complete window of 10 seconds.
+   */
+  public static class Rate {
+    private final AtomicLong total   = new AtomicLong();
+    private final AtomicLong current = new AtomicLong();
+    private volatile long    window;
+    private volatile long    previous;
+
+    public void add(final long delta) {
+      rotate(System.currentTimeMillis() / RATE_WINDOW);
+      current.addAndGet(delta);
+      total.addAndGet(delta);
+    }
+
+    public long getTotal() {
+      return total.get();
+    }
+
+    /**
+     * Returns the operations per second of the last complete window.
+     */
+    public long getPerSecond() {
+      rotate(System.currentTimeMillis() / RATE_WINDOW);
+      return previous * 1000 / RATE_WINDOW;
+    }
+
+    private void rotate(final long now) {
+      if (now == window)
+        return;
+
+      synchronized (this) {
+        if (now != window) {
+          final long last = current.getAndSet(0);
+          previous = now == window + 1 ? last : 0;
+          window = now;
+        }
+      }
+    }
+  }
+
+  /**
+   * Metrics of a class.
+   */
+  public static class ClassMetrics {
+    private final Rate                    indexed     = new Rate();
+    private final Rate                    deleted     = new Rate();
+    private final AtomicLong              failed      = new AtomicLong();
+    private final OElasticSearchHistogram hookLatency = new OElasticSearchHistogram();
+    private final String                  indexMetric;
+    private final String                  deleteMetric;
+
+    public ClassMetrics(final String dbName, final String className) {
+      indexMetric = "es." + dbName + "." + className + ".index";
+      deleteMetric = "es." + dbName + "." + className + ".delete";
+    }
+
+    public ODocument toDocument() {
+      return new ODocument()
+          .fields("indexed", indexed.getTotal(), "deleted", deleted.getTotal(), "indexPerSecond", indexed.getPerSecond(),
+              "deletePerSecond", deleted.getPerSecond(), "failed", failed.get(), "hookLatencyMicros", hookLatency.toDocument());
+    }
+  }
+
+  private final String                              dbName;
+  private final long                                createdOn     = System.currentTimeMillis();
+  private final ConcurrentMap<String, ClassMetrics> classes       = new ConcurrentHashMap<String, ClassMetrics>();
+  private final OElasticSearchHistogram             bulkActions   = new OElasticSearchHistogram();
+  private final OElasticSearchHistogram             bulkBytes     = new OElasticSearchHistogram();
+  private final OElasticSearchHistogram             bulkMillis    = new OElasticSearchHistogram();
+  private final AtomicLong                          totalActions  = new AtomicLong();
+  private final AtomicLong                          totalBytes    = new AtomicLong();
+  private final AtomicLong                          failedItems   = new AtomicLong();
+  private final AtomicLong                          rejectedItems = new AtomicLong();
+  private final AtomicLong                          acknowledged  = new AtomicLong();
+  private final ArrayDeque<long[]>                  enqueueMarks  = new ArrayDeque<long[]>();
+  private volatile long                             lag;
+  private volatile OElasticSearchReplicator         replicator;
+
+  public OElasticSearchMetrics(final String dbName) {
+    this.dbName = dbName;
+  }
+
+  /**
+   * Publishes the queue depth and the replication lag to the profiler.
+   */
+  public void registerProfilerHooks(final OElasticSearchReplicator replicator) {
+    this.replicator = replicator;
+
+    final OProfiler profiler = Orient.instance().getProfiler();
+    profiler.registerHookValue("es." + dbName + ".queueSize", "ES replication: changes waiting to be sent",
+        OProfiler.METRIC_TYPE.SIZE, new OAbstractProfiler.OProfilerHookValue() {
+          @Override
+          public Object getValue() {
+            return replicator.getQueueSize();
+          }
+        }, "es.*.queueSize");
+    profiler.registerHookValue("es." + dbName + ".lag", "ES replication: lag in milliseconds", OProfiler.METRIC_TYPE.STAT,
+        new OAbstractProfiler.OProfilerHookValue() {
+          @Override
+          public Object getValue() {
+            return lag;
+          }
+        }, "es.*.lag");
+  }
+
+  public void unregisterProfilerHooks() {
+    final OProfiler profiler = Orient.instance().getProfiler();
+    profiler.unregisterHookValue("es." + dbName + ".queueSize");
+    profiler.unregisterHookValue("es." + dbName + ".lag");
+  }
+
+  /**
+   * Records a change captured by a hook and the time spent in the hook.
+   */
+  public void onHook(final String className, final boolean delete, final long nanos) {
+    final ClassMetrics m = getClassMetrics(className);
+    (delete ? m.deleted : m.indexed).add(1);
+    m.hookLatency.record(nanos / 1000);
+
+    final OProfiler profiler = Orient.instance().getProfiler();
+    if (profiler.isRecording())
+      profiler.updateCounter(delete ? m.deleteMetric : m.indexMetric, "ES replication: changes by class", 1,
+          delete ? "es.*.*.delete" : "es.*.*.index");
+  }
+
+  public void onBulk(final int actions, final long bytes, final long nanos) {
+    bulkActions.record(actions);
+    bulkBytes.record(bytes);
+    bulkMillis.record(nanos / 1000000);
+    totalActions.addAndGet(actions);
+    totalBytes.addAndGet(bytes);
+  }
+
+  public void onItemFailure(final String className, final String failure) {
+    failedItems.incrementAndGet();
+    if (failure != null && failure.contains("EsRejectedExecutionException"))
+      rejectedItems.incrementAndGet();
+    if (className != null)
+      getClassMetrics(className).failed.incrementAndGet();
+  }
+
+  /**
+   * Samples the time a change is enqueued, to measure the replication lag when it is acknowledged.
+   */
+  public void onEnqueued(final long sequence) {
+    if (sequence % LAG_SAMPLING != 0)
+      return;
+
+    synchronized (enqueueMarks) {
+      if (enqueueMarks.size() >= MAX_MARKS)
+        enqueueMarks.pollFirst();
+      enqueueMarks.addLast(new long[] { sequence, System.currentTimeMillis() });
+    }
+  }
+
+  /**
+   * Acknowledges the oldest enqueued changes, sent to Elastic Search.
+   */
+  public void onAcknowledged(final int changes) {
+    final long ack = acknowledged.addAndGet(changes);
+
+    long[] last = null;
+    synchronized (enqueueMarks) {
+      while (!enqueueMarks.isEmpty() && enqueueMarks.peekFirst()[0] <= ack)
+        last = enqueueMarks.pollFirst();
+    }
+    if (last != null)
+      lag = System.currentTimeMillis() - last[1];
+  }
+
+  public long getLag() {
+    return lag;
+  }
+
+  public ODocument toDocument() {
+    final ODocument doc = new ODocument();
+    doc.field("database", dbName);
+    doc.field("uptime", System.currentTimeMillis() - createdOn);
+
+    final OElasticSearchReplicator r = replicator;
+    if (r != null) {
+      doc.field("mode", r.getMode().toString());
+      doc.field("queueSize", r.getQueueSize());
+      doc.field("enqueued", r.getEnqueued());
+      doc.field("sent", r.getSent());
+      doc.field("failed", r.getFailed());
+      doc.field("dropped", r.getDropped());
+      doc.field("lost", r.getLost());
+      doc.field("spilled", r.getSpilled());
+      doc.field("collapsed", r.getCollapsed());
+      if (r.getJournal() != null)
+        doc.field("journalPendingBytes", r.getJournal().getPendingBytes());
+      doc.field("bulkController", r.getBulkController().toDocument(), OType.EMBEDDED);
+    }
+
+    doc.field("lagMillis", lag);
+    doc.field("failedItems", failedItems.get());
+    doc.field("rejectedItems", rejectedItems.get());
+    doc.field("bulkActions", bulkActions.toDocument(), OType.EMBEDDED);
+    doc.field("bulkBytes", bulkBytes.toDocument(), OType.EMBEDDED);
+    doc.field("bulkMillis", bulkMillis.toDocument(), OType.EMBEDDED);
+    final long actions = totalActions.get();
+    doc.field("bytesPerAction", actions > 0 ? totalBytes.get() / actions : 0);
+
+    final ODocument classesDoc = new ODocument();
+    for (Map.Entry<String, ClassMetrics> entry : classes.entrySet())
+      classesDoc.field(entry.getKey(), entry.getValue().toDocument(), OType.EMBEDDED);
+    doc.field("classes", classesDoc, OType.EMBEDDED);
+
+    return doc;
+  }
+
+  protected ClassMetrics getClassMetrics(final String className) {
+    ClassMetrics m = classes.get(className);
+    if (m == null) {
+      m = new ClassMetrics(dbName, className);
+      final ClassMetrics existent = classes.putIfAbsent(className, m);
+      if (existent != null)
+        m = existent;
+    }
+    return m;
+  }
+}
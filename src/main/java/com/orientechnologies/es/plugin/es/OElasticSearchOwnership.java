@@ -0,0 +1,167 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.orient.core.db.ODatabaseDocumentInternal;
+import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
+import com.orientechnologies.orient.server.distributed.ODistributedConfiguration;
+import com.orientechnologies.orient.server.distributed.ODistributedLifecycleListener;
+import com.orientechnologies.orient.server.distributed.ODistributedServerManager;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Ownership of the records in a distributed cluster of servers, so every record is indexed by one server only. The owner of a record
+ * is the first online server of the list of servers of its cluster, as set in the distributed configuration: the owner of the
+ * cluster, or the next server if the owner has left. The ownership is computed per cluster id and computed again when a server
+ * joins or leaves or the status of the database changes on a server.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchOwnership implements ODistributedLifecycleListener {
+  private final String                    dbName;
+  private final ODistributedServerManager manager;
+  private volatile boolean[]              owned;
+  private volatile Boolean                coordinator;
+
+  public OElasticSearchOwnership(final String dbName, final ODistributedServerManager manager) {
+    this.dbName = dbName;
+    this.manager = manager;
+    manager.registerLifecycleListener(this);
+  }
+
+  /**
+   * Returns true if the records of the cluster are indexed by this server. This is an array read.
+   */
+  public boolean isOwner(final int clusterId) {
+    if (clusterId < 0)
+      return false;
+
+    boolean[] current = owned;
+    if (current == null || clusterId >= current.length)
+      // FIRST CALL, NEW CLUSTER OR CHANGE OF THE SERVERS
+      current = compute();
+
+    return clusterId < current.length && current[clusterId];
+  }
+
+  /**
+   * Returns true if this server executes the operations on the whole index, as dropping a class: the first online server by name.
+   */
+  public boolean isCoordinator() {
+    Boolean current = coordinator;
+    if (current == null) {
+      current = getCoordinator().equals(manager.getLocalNodeName());
+      coordinator = current;
+    }
+    return current;
+  }
+
+  protected String getCoordinator() {
+    final Set<String> online = new TreeSet<String>(manager.getOnlineNodes(dbName));
+    online.add(manager.getLocalNodeName());
+    return online.iterator().next();
+  }
+
+  /**
+   * Returns the server indexing the records of the cluster: the first online server of the cluster or, if none is online, the
+   * coordinator.
+   */
+  public String getOwner(final String clusterName) {
+    final ODistributedConfiguration cfg = manager.getDatabaseConfiguration(dbName);
+    final List<String> servers = cfg != null ? cfg.getServers(clusterName, null) : null;
+
+    if (servers != null)
+      for (String server : servers) {
+        if (ODistributedConfiguration.NEW_NODE_TAG.equals(server))
+          continue;
+        if (server.equals(manager.getLocalNodeName()) || manager.isNodeOnline(server, dbName))
+          return server;
+      }
+
+    // NO SERVER CONFIGURED FOR THE CLUSTER IS ONLINE
+    return getCoordinator();
+  }
+
+  /**
+   * Forces the ownership to be computed again at the next record.
+   */
+  public void invalidate() {
+    owned = null;
+    coordinator = null;
+  }
+
+  public void close() {
+    manager.unregisterLifecycleListener(this);
+  }
+
+  protected synchronized boolean[] compute() {
+    final ODatabaseDocumentInternal db = ODatabaseRecordThreadLocal.INSTANCE.get();
+    final Collection<String> clusterNames = db.getClusterNames();
+
+    int maxClusterId = -1;
+    for (String clusterName : clusterNames)
+      maxClusterId = Math.max(maxClusterId, db.getClusterIdByName(clusterName));
+
+    final String localNode = manager.getLocalNodeName();
+    final boolean[] result = new boolean[maxClusterId + 1];
+    int count = 0;
+    for (String clusterName : clusterNames) {
+      final int clusterId = db.getClusterIdByName(clusterName);
+      if (clusterId >= 0 && localNode.equals(getOwner(clusterName))) {
+        result[clusterId] = true;
+        count++;
+      }
+    }
+
+    OLogManager.instance().info(this, "ES replication of database '%s': server %s indexes %d clusters of %d", dbName, localNode, count,
+        clusterNames.size());
+
+    owned = result;
+    return result;
+  }
+
+  @Override
+  public boolean onNodeJoining(final String iNode) {
+    return true;
+  }
+
+  @Override
+  public void onNodeJoined(final String iNode) {
+    invalidate();
+  }
+
+  @Override
+  public void onNodeLeft(final String iNode) {
+    // FAILOVER: THE CLUSTERS OF THE SERVER ARE INDEXED BY THE NEXT SERVER OF THEIR LIST
+    invalidate();
+  }
+
+  @Override
+  public void onDatabaseChangeStatus(final String iNode, final String iDatabaseName,
+      final ODistributedServerManager.DB_STATUS iNewStatus) {
+    if (dbName.equals(iDatabaseName))
+      invalidate();
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.iterator.ORecordIteratorCluster;
+import com.orientechnologies.orient.core.record.ORecord;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Full synchronization of clusters executed by a pool of workers. Every cluster is split in ranges of record positions, so also
+ * the big clusters are synchronized in parallel. Every worker uses its own database instance and bulk. The progress
+ * and the checkpoints are kept by the {@link OElasticSearchSyncJob}.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchParallelSync {
+  public static final long DEFAULT_RANGE_SIZE = 100000;
+
+  private final OElasticSearchPlugin es;
+  private final String               dbName;
+  private final int                  parallelism;
+
+  /**
+   * Range of record positions [from, to] of a cluster. It keeps the last position acknowledged by Elastic Search, so the range can
+   * be resumed.
+   */
+  public static class Range {
+    public final  int  clusterId;
+    public final  long from;
+    public final  long to;
+    private volatile long last;
+
+    public Range(final int clusterId, final long from, final long to) {
+      this.clusterId = clusterId;
+      this.from = from;
+      this.to = to;
+      this.last = from - 1;
+    }
+
+    public static Range fromDocument(final ODocument doc) {
+      final Range range = new Range(((Number) doc.field("cluster")).intValue(), ((Number) doc.field("from")).longValue(),
+          ((Number) doc.field("to")).longValue());
+      range.last = ((Number) doc.field("last")).longValue();
+      return range;
+    }
+
+    public ODocument toDocument() {
+      return new ODocument().fields("cluster", clusterId, "from", from, "to", to, "last", last);
+    }
+
+    public long getLast() {
+      return last;
+    }
+
+    public boolean isCompleted() {
+      return last >= to;
+    }
+
+    public void complete() {
+      last = to;
+    }
+
+    /**
+     * Moves the checkpoint after the last request acknowledged by Elastic Search. The documents of the links with the child policy
+     * (with id "&lt;parent&gt;/&lt;link&gt;") follow their record and can be sent with the next bulk request, so the checkpoint moves
+     * only to the record before, the last one completely written. On resume the record of the request is sent again.
+     */
+    public void acknowledge(final ActionRequest request) {
+      if (request instanceof DocumentRequest) {
+        final String id = ((DocumentRequest) request).id();
+        final int separator = id.indexOf('/');
+        final ORecordId rid = new ORecordId(separator > -1 ? id.substring(0, separator) : id);
+        if (rid.getClusterId() == clusterId && rid.getClusterPosition() - 1 > last)
+          last = rid.getClusterPosition() - 1;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "#" + clusterId + ":" + from + "-#" + clusterId + ":" + to;
+    }
+  }
+
+  public OElasticSearchParallelSync(final OElasticSearchPlugin es, final String dbName, final int parallelism) {
+    this.es = es;
+    this.dbName = dbName;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /**
+   * Splits the clusters in ranges of at most rangeSize record positions.
+   */
+  public static List<Range> split(final ODatabaseDocumentTx db, final Collection<Integer> clusterIds, final long rangeSize) {
+    final List<Range> ranges = new ArrayList<Range>();
+    for (int clusterId : clusterIds) {
+      final long[] dataRange = db.getStorage().getClusterDataRange(clusterId);
+      if (dataRange == null || dataRange[0] < 0 || dataRange[1] < 0)
+        // EMPTY CLUSTER
+        continue;
+
+      for (long from = dataRange[0]; from <= dataRange[1]; from += rangeSize)
+        ranges.add(new Range(clusterId, from, Math.min(from + rangeSize - 1, dataRange[1])));
+    }
+    return ranges;
+  }
+
+  /**
+   * Synchronizes all the ranges from their checkpoints and returns the number of records browsed.
+   */
+  public long execute(final ODatabaseDocumentTx db, final List<Range> ranges, final OElasticSearchSyncJob job) throws Exception {
+    final Queue<Range> queue = new ConcurrentLinkedQueue<Range>(ranges);
+
+    if (parallelism == 1 || ranges.size() < 2)
+      return syncRanges(db, queue, job);
+
+    final int workers = Math.min(parallelism, ranges.size());
+    final ExecutorService executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+      private final AtomicInteger counter = new AtomicInteger();
+
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread t = new Thread(r, "OrientDB ES Sync (" + dbName + ") #" + counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    try {
+      final List<Future<Long>> futures = new ArrayList<Future<Long>>(workers);
+      for (int i = 0; i < workers; ++i) {
+        final ODatabaseDocumentTx workerDb = db.copy();
+        futures.add(executor.submit(new Callable<Long>() {
+          @Override
+          public Long call() throws Exception {
+            workerDb.activateOnCurrentThread();
+            try {
+              return syncRanges(workerDb, queue, job);
+            } finally {
+              workerDb.close();
+            }
+          }
+        }));
+      }
+      db.activateOnCurrentThread();
+
+      long syncItems = 0;
+      for (Future<Long> f : futures) {
+        try {
+          syncItems += f.get();
+        } catch (ExecutionException e) {
+          // STOP THE OTHER WORKERS AND WAIT FOR THEM, SO THE CHECKPOINT SAVED AT THE END OF THE JOB IS THE LAST ONE
+          job.fail();
+          queue.clear();
+          executor.shutdownNow();
+          executor.awaitTermination(30, TimeUnit.SECONDS);
+          if (e.getCause() instanceof Exception)
+            throw (Exception) e.getCause();
+          throw e;
+        }
+      }
+      return syncItems;
+
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  protected long syncRanges(final ODatabaseDocumentTx db, final Queue<Range> queue, final OElasticSearchSyncJob job)
+      throws IOException {
+    final OElasticSearchDatabaseSync sync = job.createDatabaseSync();
+
+    long syncItems = 0;
+    Range range;
+    while (!job.isStopped() && (range = queue.poll()) != null) {
+      // SYNCHRONOUS BULK REQUESTS: WHEN THE LISTENER IS CALLED THE CHECKPOINT CAN MOVE FORWARD
+      final OElasticSearchBulk bulk = sync.createBulk(job.createListener(job.isReconcile() ? null : range));
+      try {
+        if (job.isReconcile())
+          // THE RANGE IS VERIFIED AS A WHOLE: ITS CHECKPOINT MOVES ONLY WHEN COMPLETED
+          new OElasticSearchReconcile(es.getESClient(dbName), sync, job).reconcile(db, range, bulk);
+        else
+          syncItems += sync.syncBatch(
+              job.wrap(new ORecordIteratorCluster<ORecord>(db, db, range.clusterId, range.getLast() + 1, range.to)), bulk);
+      } finally {
+        bulk.close();
+      }
+
+      if (!job.isStopped()) {
+        range.complete();
+        job.checkpoint();
+      }
+    }
+    return syncItems;
+  }
+}
@@ -21,27 +21,43 @@ package com.orientechnologies.es.plugin.es;
 
 import com.orientechnologies.common.io.OIOUtils;
 import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.es.command.OServerCommandESStats;
 import com.orientechnologies.es.command.OServerCommandESSync;
+import com.orientechnologies.es.function.OSQLFunctionESSearch;
 import com.orientechnologies.orient.core.Orient;
+import com.orientechnologies.orient.core.db.ODatabaseDocumentInternal;
 import com.orientechnologies.orient.core.db.ODatabaseInternal;
 import com.orientechnologies.orient.core.db.ODatabaseLifecycleListener;
+import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import com.orientechnologies.orient.core.exception.OConfigurationException;
+import com.orientechnologies.orient.core.id.ORecordId;
 import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.record.ORecord;
 import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.OSQLEngine;
 import com.orientechnologies.orient.server.OServer;
 import com.orientechnologies.orient.server.config.OServerParameterConfiguration;
+import com.orientechnologies.orient.server.distributed.ODistributedServerManager;
 import com.orientechnologies.orient.server.network.OServerNetworkListener;
 import com.orientechnologies.orient.server.network.protocol.http.ONetworkProtocolHttpAbstract;
 import com.orientechnologies.orient.server.plugin.OServerPluginAbstract;
-import org.elasticsearch.client.transport.TransportClient;
-import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Elastic Search connector plugin.
@@ -49,8 +65,12 @@ import java.util.concurrent.ConcurrentHashMap;
 public class OElasticSearchPlugin extends OServerPluginAbstract implements ODatabaseLifecycleListener {
   private OServer server;
   private ConcurrentHashMap<String, OElasticSearchDatabaseConfiguration> clientConfigurations = new ConcurrentHashMap<String, OElasticSearchDatabaseConfiguration>();
+  private ConcurrentHashMap<String, OElasticSearchSyncJob>               syncJobs             = new ConcurrentHashMap<String, OElasticSearchSyncJob>();
+  private ExecutorService                                                syncJobExecutor;
+  private OElasticSearchClientManager                                    clientManager;
 
-  private boolean enabled = false;
+  private boolean enabled         = false;
+  private int     syncParallelism = 1;
 
   @Override
   public void config(final OServer server, final OServerParameterConfiguration[] iParams) {
@@ -62,7 +82,8 @@ public class OElasticSearchPlugin extends OServerPluginAbstract implements OData
           // ENABLE IT
 
           enabled = true;
-      }
+      } else if (param.name.equalsIgnoreCase("syncParallelism"))
+        syncParallelism = Integer.parseInt(param.value);
     }
     OLogManager.instance().info(this, "Elastic sync plugin enabled:: " + enabled);
   }
@@ -72,23 +93,57 @@ public class OElasticSearchPlugin extends OServerPluginAbstract implements OData
     if (!enabled)
       return;
 
+    clientManager = new OElasticSearchClientManager();
+
     Orient.instance().addDbLifecycleListener(this);
 
+    syncJobExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger counter = new AtomicInteger();
+
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread t = new Thread(r, "OrientDB ES Sync Job #" + counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
     final OServerNetworkListener listener = server.getListenerByProtocol(ONetworkProtocolHttpAbstract.class);
     if (listener == null)
       throw new OConfigurationException("HTTP listener not found");
 
     listener.registerStatelessCommand(new OServerCommandESSync(this));
+    listener.registerStatelessCommand(new OServerCommandESStats(this));
+
+    OSQLEngine.getInstance().registerFunction(OSQLFunctionESSearch.NAME, new OSQLFunctionESSearch(this));
   }
 
   @Override
   public void shutdown() {
+    if (enabled)
+      OSQLEngine.getInstance().unregisterFunction(OSQLFunctionESSearch.NAME);
+
+    if (syncJobExecutor != null) {
+      // STOP THE RUNNING JOBS: THEY CAN BE RESUMED AFTER THE RESTART
+      for (OElasticSearchSyncJob job : syncJobs.values())
+        job.cancel();
+      syncJobExecutor.shutdown();
+      try {
+        syncJobExecutor.awaitTermination(30, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
     if (clientConfigurations != null) {
       for (OElasticSearchDatabaseConfiguration c : clientConfigurations.values())
-        c.getClient().close();
+        closeESClient(c);
 
       clientConfigurations.clear();
     }
+
+    if (clientManager != null)
+      clientManager.close();
   }
 
   @Override
@@ -110,6 +165,7 @@ public class OElasticSearchPlugin extends OServerPluginAbstract implements OData
     OLogManager.instance().info(this, "loading ES conf for database %s", iDatabase.getName());
     final OElasticSearchDatabaseSync db = new OElasticSearchDatabaseSync(iDatabase.getName(), getESClient(iDatabase.getName()));
     iDatabase.registerHook(db);
+    iDatabase.registerListener(db);
   }
 
   @Override
@@ -119,14 +175,24 @@ public class OElasticSearchPlugin extends OServerPluginAbstract implements OData
   @Override
   public void onDrop(final ODatabaseInternal iDatabase) {
     getDatabase(iDatabase.getName()).drop();
+
+    final OElasticSearchDatabaseConfiguration clientCfg = clientConfigurations.remove(iDatabase.getName());
+    if (clientCfg != null)
+      closeESClient(clientCfg);
   }
 
   @Override
   public void onCreateClass(final ODatabaseInternal iDatabase, final OClass iClass) {
+    final OElasticSearchDatabaseConfiguration esClient = getESClient(iDatabase.getName());
+    if (esClient != null)
+      esClient.invalidateRules();
   }
 
   @Override
   public void onDropClass(final ODatabaseInternal iDatabase, final OClass iClass) {
+    final OElasticSearchDatabaseConfiguration esClient = getESClient(iDatabase.getName());
+    if (esClient != null)
+      esClient.invalidateRules();
     getDatabase(iDatabase.getName()).dropClass(iClass.getName());
   }
 
@@ -135,60 +201,180 @@ public class OElasticSearchPlugin extends OServerPluginAbstract implements OData
   }
 
   public OElasticSearchDatabaseConfiguration getESClient(final String dbName) {
-    OElasticSearchDatabaseConfiguration clientCfg = clientConfigurations.get(dbName);
-
-    if (clientCfg == null) {
-      final ODocument configuration = new ODocument();
+    final OElasticSearchDatabaseConfiguration clientCfg = clientConfigurations.get(dbName);
+    if (clientCfg != null)
+      return clientCfg;
+
+    synchronized (clientConfigurations) {
+      // ONLY ONE CONFIGURATION PER DATABASE IS EVER CREATED: IT OPENS THE JOURNAL AND REGISTERS THE PROFILER HOOKS
+      OElasticSearchDatabaseConfiguration existent = clientConfigurations.get(dbName);
+      if (existent == null) {
+        existent = createESClient(dbName);
+        if (existent != null)
+          clientConfigurations.put(dbName, existent);
+      }
+      return existent;
+    }
+  }
 
-      final File esConfig = new File(server.getDatabaseDirectory() + dbName + "/elastic-search-config.json");
-      if (esConfig.exists()) {
-        try {
-          configuration.fromJSON(OIOUtils.readFileAsString(esConfig), "noMap");
-        } catch (IOException e) {
-          OLogManager.instance().error(this, "Error on loading JSON file: %s", e, esConfig);
-        }
-      } else {
-        OLogManager.instance().warn(this, "Database %s is not configured for  sync on ES", dbName);
+  protected OElasticSearchDatabaseConfiguration createESClient(final String dbName) {
+    final ODocument configuration = new ODocument();
 
-        return clientCfg;
+    final String databasePath = getDatabasePath(dbName);
+    final File esConfig = new File(databasePath + "/elastic-search-config.json");
+    if (esConfig.exists()) {
+      try {
+        configuration.fromJSON(OIOUtils.readFileAsString(esConfig), "noMap");
+      } catch (IOException e) {
+        OLogManager.instance().error(this, "Error on loading JSON file: %s", e, esConfig);
       }
+    } else {
+      OLogManager.instance().warn(this, "Database %s is not configured for  sync on ES", dbName);
+
+      return null;
+    }
 
+    try {
+      // THE CLIENT IS SHARED WITH THE DATABASES CONNECTED TO THE SAME CLUSTER
+      final Client client = clientManager.acquire(configuration);
+      final OElasticSearchDatabaseConfiguration clientCfg;
       try {
-        String esClusterName = "elasticsearch";
-        String esServer = "localhost";
-        int esPort = 9300;
-
-        if (configuration.containsField("es")) {
-          // READ SETTING FROM CONFIGURATION
-          esServer = (String) configuration.eval("es.host");
-          esPort = (Integer) configuration.eval("es.port");
-          esClusterName = (String) configuration.eval("es.clusterName");
-        }
+        clientCfg = new OElasticSearchDatabaseConfiguration(dbName, databasePath, client, configuration);
+      } catch (RuntimeException e) {
+        clientManager.release(client);
+        throw e;
+      }
 
-        final Settings settings = Settings.settingsBuilder().put("cluster.name", esClusterName).build();
-        clientCfg = new OElasticSearchDatabaseConfiguration(TransportClient.builder().settings(settings).build()
-            .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName(esServer), esPort)), configuration);
+      if ("owner".equalsIgnoreCase(OElasticSearchDatabaseConfiguration.getSetting(configuration, "distributed.mode", "all"))) {
+        // EVERY RECORD IS INDEXED BY ONE SERVER ONLY
+        final ODistributedServerManager distributedManager = server.getDistributedManager();
+        if (distributedManager != null && distributedManager.isEnabled())
+          clientCfg.setOwnership(new OElasticSearchOwnership(dbName, distributedManager));
+        else
+          OLogManager.instance().warn(this, "ES plugin: database %s is not distributed, all the records are indexed", dbName);
+      }
 
-        final OElasticSearchDatabaseConfiguration existentClient = clientConfigurations.putIfAbsent(dbName, clientCfg);
-        if (existentClient != null) {
-          // CONCURRENT INSERT: CLOSE CURRENT ONE AND USE THE EXISTENT
-          clientCfg.getClient().close();
-          clientCfg = existentClient;
+      clientCfg.getReplicator().setMissingDocumentHandler(new OElasticSearchReplicator.MissingDocumentHandler() {
+        @Override
+        public List<ActionRequest> onMissing(final List<UpdateRequest> updates) {
+          return reindexMissing(dbName, clientCfg, updates);
         }
-      } catch (UnknownHostException e) {
+      });
+      return clientCfg;
 
-        OLogManager.instance().error(this, "Error on connecting to ES server", e);
-      }
+    } catch (UnknownHostException e) {
 
+      OLogManager.instance().error(this, "Error on connecting to ES server", e);
+      return null;
     }
+  }
 
-    return clientCfg;
+  /**
+   * Stops the replication of a database and releases its client, that is closed if no other database uses it.
+   */
+  protected void closeESClient(final OElasticSearchDatabaseConfiguration clientCfg) {
+    clientCfg.close();
+    clientManager.release(clientCfg.getClient());
+  }
+
+  /**
+   * Reads the records of the partial updates of documents missing in Elastic Search and returns the requests to index them whole.
+   * The records deleted in the meantime are skipped. If the records cannot be read the exception is thrown, so the replicator retries
+   * the batch.
+   */
+  protected List<ActionRequest> reindexMissing(final String dbName, final OElasticSearchDatabaseConfiguration cfg,
+      final List<UpdateRequest> updates) {
+    final List<ActionRequest> requests = new ArrayList<ActionRequest>(updates.size());
+
+    // THE HANDLER RUNS ON THE REPLICATOR THREADS OR ON THE WRITER: KEEP THE DATABASE OF THE CURRENT THREAD
+    final ODatabaseDocumentInternal current = ODatabaseRecordThreadLocal.INSTANCE.getIfDefined();
+    ODatabaseDocumentTx db = null;
+    try {
+      db = server.openDatabase(dbName, null, null, null, true);
+
+      final OElasticSearchDatabaseSync sync = new OElasticSearchDatabaseSync(dbName, cfg);
+      for (UpdateRequest update : updates) {
+        final ORecord record = db.load(new ORecordId(update.id()));
+        if (record instanceof ODocument) {
+          final IndexRequest request = sync.createIndexRequest((ODocument) record, update.index(), false);
+          if (request != null)
+            requests.add(request);
+        }
+      }
+
+      OLogManager.instance()
+          .info(this, "ES replication of database '%s': %d updated records were missing in ES and have been indexed", dbName,
+              requests.size());
+
+    } finally {
+      if (db != null)
+        db.close();
+      if (current != null)
+        current.activateOnCurrentThread();
+      else
+        ODatabaseRecordThreadLocal.INSTANCE.remove();
+    }
+    return requests;
   }
 
   public OElasticSearchDatabaseSync getDatabase(final String dbName) {
     return new OElasticSearchDatabaseSync(dbName, getESClient(dbName));
   }
 
+  public String getDatabasePath(final String dbName) {
+    return server.getDatabaseDirectory() + dbName;
+  }
+
+  /**
+   * Starts a synchronization job in background, or resumes a stopped one.
+   */
+  public OElasticSearchSyncJob startSyncJob(final OElasticSearchSyncJob job, final ODatabaseDocumentTx requestDb) {
+    job.prepare(requestDb);
+    syncJobs.put(job.getId(), job);
+    syncJobExecutor.execute(job);
+    return job;
+  }
+
+  /**
+   * Returns a synchronization job, loading it from disk if it has been executed before the last restart. Returns null if not found.
+   */
+  public OElasticSearchSyncJob getSyncJob(final String dbName, final String jobId) throws IOException {
+    OElasticSearchSyncJob job = syncJobs.get(jobId);
+    if (job == null) {
+      if (!OElasticSearchSyncJob.getFile(this, dbName, jobId).exists())
+        return null;
+
+      job = new OElasticSearchSyncJob(this, dbName, jobId);
+      final OElasticSearchSyncJob existent = syncJobs.putIfAbsent(jobId, job);
+      if (existent != null)
+        job = existent;
+    }
+    return job.getDatabaseName().equals(dbName) ? job : null;
+  }
+
+  /**
+   * Returns all the synchronization jobs of a database, included the ones saved on disk.
+   */
+  public List<OElasticSearchSyncJob> getSyncJobs(final String dbName) throws IOException {
+    final List<OElasticSearchSyncJob> jobs = new ArrayList<OElasticSearchSyncJob>();
+    final File[] files = new File(getDatabasePath(dbName), OElasticSearchSyncJob.DIRECTORY).listFiles();
+    if (files != null)
+      for (File f : files)
+        if (f.getName().endsWith(".json")) {
+          final OElasticSearchSyncJob job = getSyncJob(dbName, f.getName().substring(0, f.getName().length() - ".json".length()));
+          if (job != null)
+            jobs.add(job);
+        }
+    return jobs;
+  }
+
+  /**
+   * Returns the default number of workers of a full synchronization.
+   */
+  public int getSyncParallelism() {
+    return syncParallelism;
+  }
+
   @Override
   public String getName() {
     return "es-plugin";
@@ -0,0 +1,291 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.db.ODatabaseDocumentInternal;
+import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.record.ORecord;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.record.impl.ODocumentInternal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.orientechnologies.es.plugin.es.OElasticSearchDatabaseConfiguration.getSetting;
+
+/**
+ * Projections of the fields of the linked records, denormalized in the indexed document: with "Order": ["customer.name"] the link
+ * "customer" is indexed as {"@rid": "#12:3", "name": "Acme"}. The projected fields are kept in a bounded LRU cache shared by the
+ * hooks and the synchronization jobs, so a linked record is loaded once and not once per record linking it. The write hooks remove
+ * the updated and deleted records from the cache. The projections of a class apply also to its subclasses, unless they have their
+ * own projections. The cache is populated only outside the transactions, so it never contains uncommitted values.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchProjections {
+  private static final Map<String, String[]>       NONE     = Collections.emptyMap();
+
+  /**
+   * Load of a record to cache. A change of the record during the load invalidates it, so the loaded values are not cached.
+   */
+  private static class Load {
+    private int     loaders;
+    private boolean invalidated;
+  }
+
+  private final Map<String, Map<String, String[]>> rules    = new HashMap<String, Map<String, String[]>>();
+  private final Map<String, Map<String, String[]>> resolved = new ConcurrentHashMap<String, Map<String, String[]>>();
+  private final int                                maxEntries;
+  private final Map<ORID, Map<String, Object>>     entries;
+  // GUARDED BY entries
+  private final Map<ORID, Load>                    loading  = new HashMap<ORID, Load>();
+  // CLUSTERS OF THE RECORDS PROJECTED SO FAR: THE CHANGES OF THE OTHER RECORDS ARE IGNORED
+  private final Set<Integer>                       clusters = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+  private final AtomicLong                         hits     = new AtomicLong();
+  private final AtomicLong                         misses   = new AtomicLong();
+
+  public OElasticSearchProjections(final ODocument configuration) {
+    this.maxEntries = getSetting(configuration, "projection.cacheSize", 10000);
+    this.entries = new LinkedHashMap<ORID, Map<String, Object>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<ORID, Map<String, Object>> eldest) {
+        return size() > OElasticSearchProjections.this.maxEntries;
+      }
+    };
+
+    final Object classes = configuration.eval("projection.classes");
+    if (classes instanceof ODocument)
+      for (String className : ((ODocument) classes).fieldNames()) {
+        final Collection<String> paths = ((ODocument) classes).field(className);
+        if (paths != null)
+          rules.put(className, parsePaths(className, paths));
+      }
+  }
+
+  public boolean isEmpty() {
+    return rules.isEmpty();
+  }
+
+  /**
+   * Returns the fields to project of the record linked by a field of the document, or null if the link is not projected.
+   */
+  public String[] getFields(final ODocument doc, final String fieldName) {
+    if (rules.isEmpty())
+      return null;
+
+    final String className = doc.getClassName();
+    if (className == null)
+      return null;
+
+    Map<String, String[]> classRules = resolved.get(className);
+    if (classRules == null) {
+      final OClass cls = ODocumentInternal.getImmutableSchemaClass(doc);
+      classRules = cls != null ? resolve(cls) : rules.get(className);
+      if (classRules == null)
+        classRules = NONE;
+      resolved.put(className, classRules);
+    }
+    return classRules.get(fieldName);
+  }
+
+  /**
+   * Returns the fields to project of the record linked by a field of the class, or null if the link is not projected. Not cached.
+   */
+  public String[] getFields(final OClass cls, final String fieldName) {
+    if (rules.isEmpty())
+      return null;
+
+    final Map<String, String[]> classRules = resolve(cls);
+    return classRules != null ? classRules.get(fieldName) : null;
+  }
+
+  /**
+   * Returns the projected fields of the linked record, from the cache or loading the record, or null if the record doesn't exist.
+   */
+  public Map<String, Object> project(final OIdentifiable link, final String[] fields) {
+    final ORID rid = link.getIdentity();
+    final boolean cacheable = maxEntries > 0 && rid.isPersistent();
+    // INSIDE A TRANSACTION THE RECORD COULD BE CHANGED AND NOT COMMITTED: READ THE CACHE BUT DON'T POPULATE IT
+    final boolean populate = cacheable && !isInTransaction();
+
+    Map<String, Object> cached = null;
+    if (cacheable) {
+      synchronized (entries) {
+        cached = entries.get(rid);
+      }
+      if (cached != null && containsAll(cached, fields)) {
+        hits.incrementAndGet();
+        return cached;
+      }
+    }
+
+    misses.incrementAndGet();
+
+    // A CHANGE OF THE RECORD DURING THE LOAD COULD BE MISSED: THE LOAD IS REGISTERED SO THE CHANGE CAN INVALIDATE IT
+    final Load load = populate ? beginLoad(rid) : null;
+    Map<String, Object> values = null;
+    try {
+      final ORecord record = link.getRecord();
+      if (!(record instanceof ODocument))
+        return null;
+
+      values = cached != null ? new HashMap<String, Object>(cached) : new HashMap<String, Object>();
+      for (String f : fields)
+        values.put(f, ((ODocument) record).rawField(f));
+      return values;
+
+    } finally {
+      if (load != null)
+        endLoad(rid, load, values);
+    }
+  }
+
+  /**
+   * Returns true if the record could be in the cache, because records of its cluster have been projected.
+   */
+  public boolean isProjected(final ORID rid) {
+    return !rules.isEmpty() && clusters.contains(rid.getClusterId());
+  }
+
+  /**
+   * Called by the write hooks on every update and delete of a record, and again after the commit of the transaction.
+   */
+  public void onChange(final ORID rid) {
+    if (!isProjected(rid))
+      return;
+
+    synchronized (entries) {
+      entries.remove(rid);
+      final Load load = loading.get(rid);
+      if (load != null)
+        load.invalidated = true;
+    }
+  }
+
+  /**
+   * Forgets the resolved projections, after a change of the schema.
+   */
+  public void invalidate() {
+    resolved.clear();
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+      for (Load load : loading.values())
+        load.invalidated = true;
+    }
+  }
+
+  public ODocument toDocument() {
+    final int size;
+    synchronized (entries) {
+      size = entries.size();
+    }
+    return new ODocument().fields("size", size, "hits", hits.get(), "misses", misses.get());
+  }
+
+  protected Load beginLoad(final ORID rid) {
+    // REGISTERED BEFORE THE LOAD, SO A CONCURRENT CHANGE CANNOT SKIP THE INVALIDATION
+    clusters.add(rid.getClusterId());
+
+    synchronized (entries) {
+      Load load = loading.get(rid);
+      if (load == null) {
+        load = new Load();
+        loading.put(rid.copy(), load);
+      }
+      load.loaders++;
+      return load;
+    }
+  }
+
+  protected void endLoad(final ORID rid, final Load load, final Map<String, Object> values) {
+    synchronized (entries) {
+      if (values != null && !load.invalidated)
+        entries.put(rid.copy(), values);
+      if (--load.loaders == 0)
+        loading.remove(rid);
+    }
+  }
+
+  protected static boolean isInTransaction() {
+    final ODatabaseDocumentInternal db = ODatabaseRecordThreadLocal.INSTANCE.getIfDefined();
+    return db != null && db.getTransaction().isActive();
+  }
+
+  protected Map<String, String[]> resolve(final OClass cls) {
+    final Map<String, String[]> classRules = rules.get(cls.getName());
+    if (classRules != null)
+      return classRules;
+
+    for (OClass superClass : cls.getSuperClasses()) {
+      final Map<String, String[]> superRules = resolve(superClass);
+      if (superRules != null)
+        return superRules;
+    }
+    return null;
+  }
+
+  /**
+   * Groups the paths "<link>.<field>" by link field.
+   */
+  protected static Map<String, String[]> parsePaths(final String className, final Collection<String> paths) {
+    final Map<String, List<String>> byLink = new HashMap<String, List<String>>();
+    for (String path : paths) {
+      final int separator = path.indexOf('.');
+      if (separator < 1 || separator == path.length() - 1 || path.indexOf('.', separator + 1) > -1)
+        throw new IllegalArgumentException(
+            "Invalid projection '" + path + "' for class " + className + ": use <link field>.<field of the linked record>");
+
+      final String link = path.substring(0, separator);
+      List<String> fields = byLink.get(link);
+      if (fields == null) {
+        fields = new ArrayList<String>();
+        byLink.put(link, fields);
+      }
+      fields.add(path.substring(separator + 1));
+    }
+
+    final Map<String, String[]> result = new HashMap<String, String[]>();
+    for (Map.Entry<String, List<String>> entry : byLink.entrySet())
+      result.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+    return result;
+  }
+
+  private static boolean containsAll(final Map<String, Object> values, final String[] fields) {
+    for (String f : fields)
+      if (!values.containsKey(f))
+        return false;
+    return true;
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.record.ORecord;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.OCluster;
+import com.orientechnologies.orient.core.storage.OPhysicalPosition;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.range.Range;
+import org.elasticsearch.search.aggregations.bucket.range.RangeBuilder;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.elasticsearch.search.aggregations.metrics.sum.Sum;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Verifies a range of record positions against Elastic Search and repairs only the records that diverge. The digests of the range
+ * (count, sum, min and max of the positions and sum of the versions) are computed on both sides: on OrientDB reading only the
+ * position map and the record headers, on Elastic Search with one aggregation on the "@cluster", "@position" and "@version"
+ * attributes. A range with different digests is split in 16 sub-ranges, compared again with one request, until a range has few
+ * records: then the records are compared one by one, re-indexing the missing and outdated ones and deleting the ones not in the
+ * database anymore. The traffic is proportional to the drift, not to the size of the database.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchReconcile {
+  public static final int   FANOUT       = 16;
+  public static final int   LEAF_SIZE    = 1000;
+  private static final long MAX_POSITION = Long.MAX_VALUE / 2;
+
+  /**
+   * Digest of the records of a range.
+   */
+  public static class Digest {
+    private long count;
+    private long positions;
+    private long minPosition = Long.MAX_VALUE;
+    private long maxPosition = Long.MIN_VALUE;
+    private long versions;
+
+    public void add(final long position, final long version) {
+      count++;
+      positions += position;
+      versions += version;
+      minPosition = Math.min(minPosition, position);
+      maxPosition = Math.max(maxPosition, position);
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Digest))
+        return false;
+      final Digest other = (Digest) o;
+      return count == other.count && (count == 0 || positions == other.positions && versions == other.versions
+          && minPosition == other.minPosition && maxPosition == other.maxPosition);
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (count ^ positions ^ versions);
+    }
+  }
+
+  private final OElasticSearchDatabaseConfiguration esConfig;
+  private final OElasticSearchDatabaseSync          sync;
+  private final OElasticSearchSyncJob               job;
+
+  public OElasticSearchReconcile(final OElasticSearchDatabaseConfiguration esConfig, final OElasticSearchDatabaseSync sync,
+      final OElasticSearchSyncJob job) {
+    this.esConfig = esConfig;
+    this.sync = sync;
+    this.job = job;
+  }
+
+  /**
+   * Splits the clusters as a full synchronization, plus a range per cluster after its last record, where only documents of deleted
+   * records can be.
+   */
+  public static List<OElasticSearchParallelSync.Range> split(final ODatabaseDocumentTx db, final Collection<Integer> clusterIds,
+      final long rangeSize) {
+    final List<OElasticSearchParallelSync.Range> ranges = OElasticSearchParallelSync.split(db, clusterIds, rangeSize);
+    for (int clusterId : clusterIds) {
+      final long[] dataRange = db.getStorage().getClusterDataRange(clusterId);
+      final long from = dataRange == null || dataRange[1] < 0 ? 0 : dataRange[1] + 1;
+      ranges.add(new OElasticSearchParallelSync.Range(clusterId, from, MAX_POSITION));
+    }
+    return ranges;
+  }
+
+  /**
+   * Verifies the range and sends the repairs to the bulk.
+   */
+  public void reconcile(final ODatabaseDocumentTx db, final OElasticSearchParallelSync.Range range, final OElasticSearchBulk bulk)
+      throws IOException {
+    final long[] bounds = new long[] { range.from, range.to + 1 };
+    final Digest[] database = digestDatabase(db, range.clusterId, bounds);
+    job.onVerified(database[0].getCount());
+
+    compare(db, range.clusterId, bounds, database, bulk);
+  }
+
+  protected void compare(final ODatabaseDocumentTx db, final int clusterId, final long[] bounds, final Digest[] database,
+      final OElasticSearchBulk bulk) throws IOException {
+    final Digest[] index = digestIndex(clusterId, bounds);
+
+    for (int i = 0; i < database.length && !job.isStopped(); ++i) {
+      if (database[i].equals(index[i]))
+        continue;
+
+      final long from = bounds[i];
+      final long to = bounds[i + 1] - 1;
+
+      if (Math.max(database[i].getCount(), index[i].getCount()) <= LEAF_SIZE || to - from < FANOUT) {
+        job.onDivergentRange();
+        repair(db, clusterId, from, to, bulk);
+      } else {
+        // DESCEND ONLY INTO THE SUB-RANGES THAT DIFFER
+        final long[] subBounds = split(from, to);
+        compare(db, clusterId, subBounds, digestDatabase(db, clusterId, subBounds), bulk);
+      }
+    }
+  }
+
+  /**
+   * Compares the records of the range one by one.
+   */
+  protected void repair(final ODatabaseDocumentTx db, final int clusterId, final long from, final long to,
+      final OElasticSearchBulk bulk) throws IOException {
+    final boolean synchronize = esConfig.isClusterSynchronized(clusterId);
+    final Map<Long, Long> versions = new HashMap<Long, Long>();
+    if (synchronize) {
+      final OCluster cluster = getCluster(db, clusterId);
+      for (OPhysicalPosition p : browse(cluster, from, to))
+        versions.put(p.clusterPosition, (long) p.recordVersion);
+    }
+
+    final Set<Long> found = new HashSet<Long>();
+    SearchResponse response = esConfig.getClient().prepareSearch(esConfig.getDatabaseIndexName())
+        .setIndicesOptions(IndicesOptions.lenientExpandOpen()).setQuery(createRangeQuery(clusterId, from, to))
+        .setFetchSource(new String[] { "@version" }, null).setSize(LEAF_SIZE).setScroll(TimeValue.timeValueMinutes(1)).get();
+    try {
+      while (response.getHits().getHits().length > 0) {
+        for (SearchHit hit : response.getHits().getHits()) {
+          final long position = new ORecordId(hit.getId()).getClusterPosition();
+          final Long version = versions.get(position);
+          if (version == null) {
+            // NOT IN THE DATABASE, UNLESS IT HAS BEEN CREATED AFTER THE SCAN
+            if (!synchronize || getCluster(db, clusterId).getPhysicalPosition(new OPhysicalPosition(position)) == null) {
+              bulk.add(new DeleteRequest(hit.getIndex(), hit.getType(), hit.getId()));
+              job.onRepaired(true);
+            }
+          } else if (found.add(position)) {
+            final Object indexed = hit.getSource() != null ? hit.getSource().get("@version") : null;
+            if (!(indexed instanceof Number) || ((Number) indexed).longValue() != version)
+              reindex(db, clusterId, position, bulk);
+          }
+        }
+        response = esConfig.getClient().prepareSearchScroll(response.getScrollId()).setScroll(TimeValue.timeValueMinutes(1))
+            .get();
+      }
+    } finally {
+      esConfig.getClient().prepareClearScroll().addScrollId(response.getScrollId()).execute();
+    }
+
+    // MISSING IN ELASTIC SEARCH
+    for (Long position : versions.keySet())
+      if (!found.contains(position))
+        reindex(db, clusterId, position, bulk);
+  }
+
+  protected void reindex(final ODatabaseDocumentTx db, final int clusterId, final long position, final OElasticSearchBulk bulk) {
+    final ORecord record = db.load(new ORecordId(clusterId, position));
+    if (!(record instanceof ODocument))
+      // DELETED IN THE MEANTIME: THE HOOK REPLICATES IT
+      return;
+
+    final IndexRequest request = sync.createIndexRequest((ODocument) record);
+    if (request != null) {
+      bulk.add(request);
+      job.onRepaired(false);
+    }
+  }
+
+  /**
+   * Computes the digests of the sub-ranges [bounds[i], bounds[i + 1]) from the position map and the record headers, without
+   * loading the records.
+   */
+  protected Digest[] digestDatabase(final ODatabaseDocumentTx db, final int clusterId, final long[] bounds) throws IOException {
+    final Digest[] digests = newDigests(bounds.length - 1);
+    if (!esConfig.isClusterSynchronized(clusterId))
+      // NOTHING SHOULD BE IN THE INDEX
+      return digests;
+
+    int current = 0;
+    for (OPhysicalPosition p : browse(getCluster(db, clusterId), bounds[0], bounds[bounds.length - 1] - 1)) {
+      while (p.clusterPosition >= bounds[current + 1])
+        current++;
+      digests[current].add(p.clusterPosition, p.recordVersion);
+    }
+    return digests;
+  }
+
+  /**
+   * Computes the digests of the sub-ranges [bounds[i], bounds[i + 1]) with one aggregation on Elastic Search.
+   */
+  protected Digest[] digestIndex(final int clusterId, final long[] bounds) {
+    final RangeBuilder ranges = AggregationBuilders.range("ranges").field("@position");
+    for (int i = 0; i < bounds.length - 1; ++i)
+      ranges.addRange(bounds[i], bounds[i + 1]);
+    ranges.subAggregation(AggregationBuilders.stats("positions").field("@position"))
+        .subAggregation(AggregationBuilders.sum("versions").field("@version"));
+
+    final SearchResponse response = esConfig.getClient().prepareSearch(esConfig.getDatabaseIndexName())
+        .setIndicesOptions(IndicesOptions.lenientExpandOpen())
+        .setQuery(createRangeQuery(clusterId, bounds[0], bounds[bounds.length - 1] - 1)).setSize(0).addAggregation(ranges).get();
+
+    final Digest[] digests = newDigests(bounds.length - 1);
+    final List<? extends Range.Bucket> buckets = ((Range) response.getAggregations().get("ranges")).getBuckets();
+    for (int i = 0; i < buckets.size() && i < digests.length; ++i) {
+      final Stats positions = buckets.get(i).getAggregations().get("positions");
+      final Sum versions = buckets.get(i).getAggregations().get("versions");
+      final Digest d = digests[i];
+      d.count = positions.getCount();
+      if (d.count > 0) {
+        d.positions = (long) positions.getSum();
+        d.minPosition = (long) positions.getMin();
+        d.maxPosition = (long) positions.getMax();
+        d.versions = (long) versions.getValue();
+      }
+    }
+    return digests;
+  }
+
+  protected QueryBuilder createRangeQuery(final int clusterId, final long from, final long to) {
+    return QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("@cluster", clusterId))
+        .filter(QueryBuilders.rangeQuery("@position").gte(from).lte(to));
+  }
+
+  /**
+   * Returns the positions in [from, to] with the record versions, reading the record headers only.
+   */
+  protected Iterable<OPhysicalPosition> browse(final OCluster cluster, final long from, final long to) throws IOException {
+    final List<OPhysicalPosition> result = new ArrayList<OPhysicalPosition>();
+    OPhysicalPosition[] positions = cluster.ceilingPositions(new OPhysicalPosition(from));
+    while (positions.length > 0 && !job.isStopped()) {
+      for (OPhysicalPosition p : positions) {
+        if (p.clusterPosition > to)
+          return result;
+
+        final OPhysicalPosition header = cluster.getPhysicalPosition(new OPhysicalPosition(p.clusterPosition));
+        if (header != null)
+          result.add(header);
+      }
+      positions = cluster.higherPositions(positions[positions.length - 1]);
+    }
+    return result;
+  }
+
+  protected static long[] split(final long from, final long to) {
+    final long step = (to - from + FANOUT) / FANOUT;
+    final int parts = (int) ((to - from + step) / step);
+    final long[] bounds = new long[parts + 1];
+    for (int i = 0; i < parts; ++i)
+      bounds[i] = from + i * step;
+    bounds[parts] = to + 1;
+    return bounds;
+  }
+
+  protected static OCluster getCluster(final ODatabaseDocumentTx db, final int clusterId) {
+    return db.getStorage().getUnderlying().getClusterById(clusterId);
+  }
+
+  protected static Digest[] newDigests(final int size) {
+    final Digest[] digests = new Digest[size];
+    for (int i = 0; i < size; ++i)
+      digests[i] = new Digest();
+    return digests;
+  }
+}
@@ -0,0 +1,521 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.common.exception.OException;
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.orient.core.exception.OConfigurationException;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.orientechnologies.es.plugin.es.OElasticSearchDatabaseConfiguration.getSetting;
+
+/**
+ * Replicates the changes captured by the hooks to Elastic Search. In ASYNC mode the changes are enqueued in a bounded queue and a
+ * background thread drains it into bulk requests, so the OrientDB writers never wait for Elastic Search. In JOURNAL mode the
+ * changes are appended to a durable journal on disk (see {@link OElasticSearchJournal}). In SYNC mode every change is sent on the
+ * caller thread.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchReplicator {
+  public enum MODE {
+    SYNC, ASYNC, JOURNAL
+  }
+
+  /**
+   * What to do when the queue or the journal is full: BLOCK waits for free space, DROP discards the change, SPILL sends the queued
+   * changes and then the change on the caller thread (ASYNC mode) or writes the change beyond the size of the journal (JOURNAL
+   * mode). Spilled changes never overtake the older ones.
+   */
+  public enum OVERFLOW_POLICY {
+    BLOCK, DROP, SPILL
+  }
+
+  /**
+   * Builds the full documents of the records whose partial update failed because the document is missing in Elastic Search.
+   */
+  public interface MissingDocumentHandler {
+    List<ActionRequest> onMissing(List<UpdateRequest> updates);
+  }
+
+  private final String                       dbName;
+  private final MODE                         mode;
+  private final int                          batchSize;
+  private final long                         maxLatency;
+  private final OVERFLOW_POLICY              overflowPolicy;
+  private final BlockingQueue<ActionRequest> queue;
+  private final Thread                       sender;
+  private final OElasticSearchJournal        journal;
+  private final OElasticSearchCoalescer      coalescer;
+  private final OElasticSearchMetrics        metrics;
+  private final OElasticSearchBulkController bulkController;
+  private volatile MissingDocumentHandler    missingHandler;
+  private volatile boolean                   running  = true;
+  // HELD BY THE SENDER WHILE COLLECTING AND SENDING A BATCH AND BY THE WRITERS WHILE SPILLING
+  private final ReentrantLock                sendLock = new ReentrantLock(true);
+
+  private final AtomicLong                   enqueued = new AtomicLong();
+  private final AtomicLong                   sent     = new AtomicLong();
+  private final AtomicLong                   dropped  = new AtomicLong();
+  private final AtomicLong                   spilled  = new AtomicLong();
+  private final AtomicLong                   failed   = new AtomicLong();
+  private final AtomicLong                   lost     = new AtomicLong();
+
+  public OElasticSearchReplicator(final String dbName, final String databasePath, final OElasticSearchBulkController bulkController,
+      final ODocument configuration, final OElasticSearchMetrics metrics) {
+    this.dbName = dbName;
+    this.metrics = metrics;
+    this.bulkController = bulkController;
+    this.mode = MODE.valueOf(getSetting(configuration, "replication.mode", "async").toUpperCase());
+    this.batchSize = getSetting(configuration, "replication.batchSize", 1000);
+    this.maxLatency = getSetting(configuration, "replication.maxLatency", 1000);
+    this.overflowPolicy = OVERFLOW_POLICY.valueOf(getSetting(configuration, "replication.overflow", "block").toUpperCase());
+
+    if (mode == MODE.ASYNC) {
+      queue = new ArrayBlockingQueue<ActionRequest>(getSetting(configuration, "replication.queueSize", 10000));
+      sender = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      }, "OrientDB ES Replicator (" + dbName + ")");
+      sender.setDaemon(true);
+      sender.start();
+    } else {
+      queue = null;
+      sender = null;
+    }
+
+    if (mode == MODE.JOURNAL) {
+      try {
+        journal = new OElasticSearchJournal(this, databasePath,
+            getSetting(configuration, "replication.journal.segmentSizeMB", 64) * 1024 * 1024,
+            getSetting(configuration, "replication.journal.maxSizeMB", 1024) * 1024l * 1024l,
+            getSetting(configuration, "replication.journal.replayBatchSize", batchSize),
+            getSetting(configuration, "replication.journal.replayRate", 0), maxLatency);
+      } catch (IOException e) {
+        throw OException.wrapException(new OConfigurationException("Cannot open the ES journal of database " + dbName), e);
+      }
+    } else
+      journal = null;
+
+    final int coalesceWindow = getSetting(configuration, "replication.coalesce.window", 0);
+    if (coalesceWindow > 0 && mode != MODE.SYNC)
+      coalescer = new OElasticSearchCoalescer(this, dbName, coalesceWindow,
+          getSetting(configuration, "replication.coalesce.maxSize", 10000));
+    else
+      coalescer = null;
+  }
+
+  /**
+   * Replicates a change. In ASYNC and JOURNAL modes the call returns as soon as the change is enqueued, unless there is no space
+   * and the overflow policy is BLOCK. If coalescing is enabled, the change waits in the coalescing buffer first.
+   */
+  public void replicate(final ActionRequest request) {
+    if (mode == MODE.SYNC) {
+      send(request);
+      return;
+    }
+    if (!running) {
+      enqueue(request);
+      return;
+    }
+
+    if (coalescer != null)
+      coalescer.add(request);
+    else
+      enqueue(request);
+  }
+
+  /**
+   * Enqueues a change in the queue or in the journal, applying the overflow policy.
+   */
+  protected void enqueue(final ActionRequest request) {
+    if (!running) {
+      // CLOSING: THE QUEUED CHANGES ARE SENT FIRST
+      if (queue != null)
+        spill(request);
+      else
+        send(request);
+      return;
+    }
+
+    if (mode == MODE.JOURNAL) {
+      try {
+        if (journal.append(request, overflowPolicy == OVERFLOW_POLICY.BLOCK, overflowPolicy == OVERFLOW_POLICY.SPILL)) {
+          metrics.onEnqueued(enqueued.incrementAndGet());
+          return;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (IOException e) {
+        OLogManager.instance().error(this, "ES replication of database '%s': error on writing to the journal", e, dbName);
+      }
+    } else if (queue.offer(request)) {
+      metrics.onEnqueued(enqueued.incrementAndGet());
+      return;
+    }
+
+    OVERFLOW_POLICY policy = overflowPolicy;
+    if (mode == MODE.JOURNAL && policy != OVERFLOW_POLICY.DROP) {
+      // THE JOURNAL CANNOT TAKE THE CHANGE EVEN WAITING (TOO BIG OR CLOSING): SEND IT DIRECTLY
+      spilled.incrementAndGet();
+      send(request);
+      return;
+    }
+
+    switch (policy) {
+    case BLOCK:
+      try {
+        queue.put(request);
+        metrics.onEnqueued(enqueued.incrementAndGet());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        dropped.incrementAndGet();
+        OLogManager.instance().warn(this, "ES replication of database '%s': interrupted while waiting for the queue, change dropped",
+            dbName);
+      }
+      break;
+
+    case DROP:
+      if (dropped.incrementAndGet() % 1000 == 1)
+        OLogManager.instance()
+            .warn(this, "ES replication of database '%s': no space left, dropped %d changes so far", dbName, dropped.get());
+      break;
+
+    case SPILL:
+      spill(request);
+      break;
+    }
+  }
+
+  /**
+   * Sends on the caller thread the queued changes followed by the change, retrying while Elastic Search is not available. The
+   * background sender is excluded meanwhile, so the older changes of the same record cannot be applied after this one.
+   */
+  protected void spill(final ActionRequest request) {
+    sendLock.lock();
+    try {
+      if (running && queue.offer(request)) {
+        // THE SENDER MADE ROOM IN THE MEANTIME
+        metrics.onEnqueued(enqueued.incrementAndGet());
+        return;
+      }
+
+      spilled.incrementAndGet();
+      final List<ActionRequest> batch = new ArrayList<ActionRequest>(queue.size() + 1);
+      final int queued = queue.drainTo(batch);
+      batch.add(request);
+
+      sendWithRetry(batch);
+      metrics.onAcknowledged(queued);
+    } finally {
+      sendLock.unlock();
+    }
+  }
+
+  /**
+   * Replicates a group of changes, like the ones of a committed transaction. In SYNC mode they are sent with one bulk request.
+   */
+  public void replicate(final List<ActionRequest> requests) {
+    if (mode == MODE.SYNC) {
+      sendOnce(requests);
+      return;
+    }
+
+    for (ActionRequest r : requests)
+      replicate(r);
+  }
+
+  /**
+   * Stops the background sender after the buffered and queued changes have been sent.
+   */
+  public void close() {
+    if (coalescer != null)
+      coalescer.close();
+
+    running = false;
+    if (journal != null)
+      journal.close();
+    if (sender != null) {
+      try {
+        sender.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public MODE getMode() {
+    return mode;
+  }
+
+  public OVERFLOW_POLICY getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  public OElasticSearchMetrics getMetrics() {
+    return metrics;
+  }
+
+  public OElasticSearchJournal getJournal() {
+    return journal;
+  }
+
+  public int getQueueSize() {
+    return queue != null ? queue.size() : 0;
+  }
+
+  public long getEnqueued() {
+    return enqueued.get();
+  }
+
+  public long getSent() {
+    return sent.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getSpilled() {
+    return spilled.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * Returns the changes never sent because Elastic Search was not available when the replicator was closed.
+   */
+  public long getLost() {
+    return lost.get();
+  }
+
+  public OElasticSearchBulkController getBulkController() {
+    return bulkController;
+  }
+
+  /**
+   * Returns the number of changes collapsed by the coalescing buffer.
+   */
+  public long getCollapsed() {
+    return coalescer != null ? coalescer.getCollapsed() : 0;
+  }
+
+  protected void drain() {
+    final List<ActionRequest> batch = new ArrayList<ActionRequest>(batchSize);
+
+    while (running || !queue.isEmpty()) {
+      sendLock.lock();
+      try {
+        collect(batch);
+
+        if (!batch.isEmpty()) {
+          sendWithRetry(batch);
+          metrics.onAcknowledged(batch.size());
+          batch.clear();
+        }
+      } finally {
+        sendLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Collects the next batch from the queue, waiting until it is full or its oldest change is too old.
+   */
+  protected void collect(final List<ActionRequest> batch) {
+    try {
+      final ActionRequest first = queue.poll(maxLatency, TimeUnit.MILLISECONDS);
+      if (first == null)
+        return;
+
+      batch.add(first);
+
+      // WAIT UNTIL THE BATCH IS FULL OR THE OLDEST CHANGE IS TOO OLD
+      final long deadline = System.currentTimeMillis() + maxLatency;
+      // THE BULK CONTROLLER SHRINKS THE BATCHES WHEN ELASTIC SEARCH IS UNDER PRESSURE
+      final int maxBatch = Math.min(batchSize, bulkController.getBatchActions());
+      while (batch.size() < maxBatch) {
+        if (queue.drainTo(batch, maxBatch - batch.size()) > 0)
+          continue;
+
+        final long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0 || !running)
+          break;
+
+        final ActionRequest next = queue.poll(wait, TimeUnit.MILLISECONDS);
+        if (next == null)
+          break;
+        batch.add(next);
+      }
+
+    } catch (InterruptedException e) {
+      // STOP WAITING: SEND WHAT HAS BEEN COLLECTED AND DRAIN THE REST OF THE QUEUE
+      running = false;
+      queue.drainTo(batch, batchSize - batch.size());
+    }
+  }
+
+  /**
+   * Sets the handler of the partial updates of missing documents. Without a handler they are counted as failed.
+   */
+  public void setMissingDocumentHandler(final MissingDocumentHandler missingHandler) {
+    this.missingHandler = missingHandler;
+  }
+
+  /**
+   * Sends a batch, retrying it with an exponential backoff while the bulk request fails as a whole (Elastic Search not available).
+   * The single items refused by Elastic Search, as a mapping error, are not retried. If the replicator is closed while Elastic Search
+   * is not available, the batch is lost after one last attempt and counted once as failed and lost.
+   */
+  protected void sendWithRetry(final List<ActionRequest> batch) {
+    long retryDelay = 100;
+    while (!send(batch, true)) {
+      if (!running) {
+        failed.addAndGet(batch.size());
+        lost.addAndGet(batch.size());
+        OLogManager.instance().warn(this, "ES replication of database '%s': %d changes lost on closing", dbName, batch.size());
+        return;
+      }
+
+      try {
+        Thread.sleep(retryDelay);
+      } catch (InterruptedException e) {
+        // STOP: TRY THE LAST TIME
+        running = false;
+      }
+      retryDelay = Math.min(retryDelay * 2, 30000);
+    }
+  }
+
+  protected boolean send(final ActionRequest request) {
+    final List<ActionRequest> batch = new ArrayList<ActionRequest>(1);
+    batch.add(request);
+    return sendOnce(batch);
+  }
+
+  /**
+   * Sends the changes on the caller thread without retrying them. If the request fails as a whole, the changes are counted as
+   * failed.
+   */
+  protected boolean sendOnce(final List<ActionRequest> batch) {
+    if (send(batch, false))
+      return true;
+    failed.addAndGet(batch.size());
+    return false;
+  }
+
+  /**
+   * Sends the changes with one bulk request through the bulk controller, that retries the changes rejected by Elastic Search. The
+   * background threads are throttled by the controller, the writers are not. Returns false if the request failed as a whole, or if
+   * the missing documents could not be indexed whole, so the batch can be retried: the changes are counted only when it succeeds.
+   */
+  protected boolean send(final List<ActionRequest> batch, final boolean throttled) {
+    final BulkRequest bulkRequest = new BulkRequest();
+    for (ActionRequest r : batch)
+      bulkRequest.add(r);
+
+    final BulkResponse response;
+    try {
+      final long start = System.nanoTime();
+      response = bulkController.execute(bulkRequest, OElasticSearchBulkController.LANE.LIVE, throttled);
+      metrics.onBulk(batch.size(), bulkRequest.estimatedSizeInBytes(), System.nanoTime() - start);
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      OLogManager.instance()
+          .warn(this, "ES replication of database '%s': interrupted while sending %d changes", dbName, batch.size());
+      return false;
+
+    } catch (Exception e) {
+      OLogManager.instance().error(this, "ES replication of database '%s': error on sending %d changes", e, dbName, batch.size());
+      return false;
+    }
+
+    List<BulkItemResponse> failures = null;
+    List<UpdateRequest> missing = null;
+    if (response.hasFailures()) {
+      for (BulkItemResponse item : response.getItems())
+        if (item.isFailed()) {
+          final ActionRequest request = batch.get(item.getItemId());
+          if (request instanceof UpdateRequest && missingHandler != null && isMissing(item)) {
+            // THE DOCUMENT HAS NEVER BEEN INDEXED OR HAS BEEN DELETED: SEND THE WHOLE RECORD
+            if (missing == null)
+              missing = new ArrayList<UpdateRequest>();
+            missing.add((UpdateRequest) request);
+            continue;
+          }
+
+          if (failures == null)
+            failures = new ArrayList<BulkItemResponse>();
+          failures.add(item);
+        }
+    }
+
+    if (missing != null) {
+      // IF THE WHOLE RECORDS CANNOT BE READ OR SENT THE BATCH IS RETRIED: THE UPDATES ALREADY APPLIED ARE WRITTEN AGAIN WITH THE
+      // SAME VALUES
+      final List<ActionRequest> fallback;
+      try {
+        fallback = missingHandler.onMissing(missing);
+      } catch (Exception e) {
+        OLogManager.instance()
+            .error(this, "ES replication of database '%s': error on reading %d records missing in ES", e, dbName, missing.size());
+        return false;
+      }
+      if (!fallback.isEmpty() && !send(fallback, throttled))
+        return false;
+    }
+
+    if (failures != null) {
+      for (BulkItemResponse item : failures)
+        metrics.onItemFailure(item.getType(), item.getFailureMessage());
+      failed.addAndGet(failures.size());
+      OLogManager.instance().warn(this, "ES replication of database '%s': %d of %d changes failed: %s", dbName, failures.size(),
+          batch.size(), response.buildFailureMessage());
+    }
+
+    sent.addAndGet(batch.size() - (failures != null ? failures.size() : 0) - (missing != null ? missing.size() : 0));
+    return true;
+  }
+
+  protected static boolean isMissing(final BulkItemResponse item) {
+    return item.getFailure().getStatus() == RestStatus.NOT_FOUND || (item.getFailureMessage() != null && item.getFailureMessage()
+        .contains("DocumentMissingException"));
+  }
+}
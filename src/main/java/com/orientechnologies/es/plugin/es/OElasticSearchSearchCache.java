@@ -0,0 +1,157 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of the results of the searches on Elastic Search. The write hooks record the last change of every class: a
+ * result is valid only if the search started after the last change of its classes plus the visibility delay, the expected time a
+ * change needs to be replicated and refreshed in Elastic Search. The staleness is bounded, not zero: a change that takes longer,
+ * because the replication is behind or Elastic Search is not available, can be missed by a cached result until the entry is
+ * replaced, and the changes made by other servers are not tracked.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchSearchCache {
+  private static class Entry {
+    private final Collection<String>  classes;
+    private final List<OIdentifiable> result;
+    private final long                startedOn;
+
+    private Entry(final Collection<String> classes, final List<OIdentifiable> result, final long startedOn) {
+      this.classes = classes;
+      this.result = result;
+      this.startedOn = startedOn;
+    }
+  }
+
+  private final int                maxEntries;
+  private final int                maxResults;
+  private final long               visibilityDelay;
+  private final Map<String, Entry> entries;
+  private final Map<String, Long>  lastChanges = new ConcurrentHashMap<String, Long>();
+  private volatile long            lastChange;
+
+  private final AtomicLong         hits        = new AtomicLong();
+  private final AtomicLong         misses      = new AtomicLong();
+
+  public OElasticSearchSearchCache(final int maxEntries, final int maxResults, final long visibilityDelay) {
+    this.maxEntries = maxEntries;
+    this.maxResults = maxResults;
+    this.visibilityDelay = visibilityDelay;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+        return size() > OElasticSearchSearchCache.this.maxEntries;
+      }
+    };
+  }
+
+  public boolean isEnabled() {
+    return maxEntries > 0;
+  }
+
+  /**
+   * Returns the maximum number of records of a result to cache it.
+   */
+  public int getMaxResults() {
+    return maxResults;
+  }
+
+  /**
+   * Returns the cached result of the search, or null if not cached or not valid anymore.
+   */
+  public List<OIdentifiable> get(final String key) {
+    final Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+
+    if (entry != null && entry.startedOn > getLastChange(entry.classes) + visibilityDelay) {
+      hits.incrementAndGet();
+      return entry.result;
+    }
+
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Caches the result of a search on the classes (null means all the classes) started at startedOn.
+   */
+  public void put(final String key, final Collection<String> classes, final List<OIdentifiable> result, final long startedOn) {
+    if (!isEnabled() || result.size() > maxResults)
+      return;
+
+    synchronized (entries) {
+      entries.put(key, new Entry(classes, Collections.unmodifiableList(result), startedOn));
+    }
+  }
+
+  /**
+   * Called by the write hooks on every change of a record of the class.
+   */
+  public void onChange(final String className) {
+    if (!isEnabled())
+      return;
+
+    final long now = System.currentTimeMillis();
+    lastChange = now;
+    if (className != null)
+      lastChanges.put(className, now);
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  public ODocument toDocument() {
+    final int size;
+    synchronized (entries) {
+      size = entries.size();
+    }
+    return new ODocument().fields("size", size, "hits", hits.get(), "misses", misses.get());
+  }
+
+  protected long getLastChange(final Collection<String> classes) {
+    if (classes == null)
+      return lastChange;
+
+    long last = 0;
+    for (String cl : classes) {
+      final Long changed = lastChanges.get(cl);
+      if (changed != null && changed > last)
+        last = changed;
+    }
+    return last;
+  }
+}
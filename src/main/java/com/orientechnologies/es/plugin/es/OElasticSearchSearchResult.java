@@ -0,0 +1,148 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.id.ORecordId;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Records matching a search on Elastic Search, fetched page by page with a scroll while they are browsed. When the search has been
+ * browsed to the end, a small result is stored in the search cache.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchSearchResult implements Iterable<OIdentifiable> {
+  private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+  private final Client                    client;
+  private final String[]                  indexes;
+  private final String[]                  types;
+  private final QueryBuilder              query;
+  private final int                       limit;
+  private final int                       pageSize;
+  private final OElasticSearchSearchCache cache;
+  private final String                    cacheKey;
+  private final Collection<String>        classes;
+
+  public OElasticSearchSearchResult(final Client client, final String[] indexes, final String[] types, final QueryBuilder query,
+      final int limit, final int pageSize, final OElasticSearchSearchCache cache, final String cacheKey,
+      final Collection<String> classes) {
+    this.client = client;
+    this.indexes = indexes;
+    this.types = types;
+    this.query = query;
+    this.limit = limit;
+    this.pageSize = limit > 0 ? Math.min(limit, pageSize) : pageSize;
+    this.cache = cache;
+    this.cacheKey = cacheKey;
+    this.classes = classes;
+  }
+
+  @Override
+  public Iterator<OIdentifiable> iterator() {
+    return new Iterator<OIdentifiable>() {
+      private final long          startedOn = System.currentTimeMillis();
+      private List<OIdentifiable> collected = cache.isEnabled() ? new ArrayList<OIdentifiable>() : null;
+      private SearchHit[]         page;
+      private int                 position;
+      private int                 returned;
+      private String              scrollId;
+      private boolean             done;
+
+      @Override
+      public boolean hasNext() {
+        if (done)
+          return false;
+
+        if (limit > 0 && returned >= limit) {
+          finish();
+          return false;
+        }
+
+        while (page == null || position >= page.length) {
+          if (page != null && page.length == 0) {
+            finish();
+            return false;
+          }
+          fetch();
+        }
+        return true;
+      }
+
+      @Override
+      public OIdentifiable next() {
+        if (!hasNext())
+          throw new NoSuchElementException();
+
+        final OIdentifiable rid = new ORecordId(page[position++].getId());
+        returned++;
+
+        if (collected != null) {
+          if (collected.size() < cache.getMaxResults())
+            collected.add(rid);
+          else
+            // TOO BIG TO BE CACHED
+            collected = null;
+        }
+        return rid;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("remove");
+      }
+
+      private void fetch() {
+        final SearchResponse response;
+        if (scrollId == null)
+          response = client.prepareSearch(indexes).setTypes(types).setIndicesOptions(IndicesOptions.lenientExpandOpen())
+              .setQuery(query).setFetchSource(false).setSize(pageSize).setScroll(SCROLL_KEEP_ALIVE).get();
+        else
+          response = client.prepareSearchScroll(scrollId).setScroll(SCROLL_KEEP_ALIVE).get();
+
+        scrollId = response.getScrollId();
+        page = response.getHits().getHits();
+        position = 0;
+      }
+
+      private void finish() {
+        done = true;
+        if (scrollId != null)
+          // FREE THE SCROLL WITHOUT WAITING FOR ITS EXPIRATION
+          client.prepareClearScroll().addScrollId(scrollId).execute();
+
+        if (collected != null)
+          cache.put(cacheKey, classes, collected, startedOn);
+      }
+    };
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.db.record.ORecordLazyMultiValue;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.elasticsearch.common.xcontent.XContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentGenerator;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the fields of a document straight to the Elastic Search source format (JSON, SMILE or CBOR), without building an intermediate map. The
+ * content is written in a buffer reused by the thread, so the only allocation per document is the final array.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchSerializer {
+  private static final int                         MAX_REUSED_BUFFER = 1024 * 1024;
+
+  private final XContentType                       contentType;
+  private final XContent                           xContent;
+  private final OElasticSearchLinkPolicies         links;
+  private final OElasticSearchProjections          projections;
+  private final ThreadLocal<ByteArrayOutputStream> buffers = new ThreadLocal<ByteArrayOutputStream>() {
+    @Override
+    protected ByteArrayOutputStream initialValue() {
+      return new ByteArrayOutputStream(4096);
+    }
+  };
+
+  public OElasticSearchSerializer() {
+    this(XContentType.JSON);
+  }
+
+  public OElasticSearchSerializer(final XContentType contentType) {
+    this(contentType, null, null);
+  }
+
+  public OElasticSearchSerializer(final XContentType contentType, final OElasticSearchLinkPolicies links,
+      final OElasticSearchProjections projections) {
+    this.contentType = contentType;
+    this.xContent = XContentFactory.xContent(contentType);
+    this.links = links != null && !links.isEmpty() ? links : null;
+    this.projections = projections != null && !projections.isEmpty() ? projections : null;
+  }
+
+  /**
+   * Serializes the document with the "@rid", "@class", "@version", "@cluster" and "@position" attributes and the fields to
+   * synchronize. An empty set of fields means all the fields. The numeric attributes are used to verify the index by ranges of
+   * record positions. The link collections are written according to their policy and the projected links as objects with the
+   * "@rid" and the projected fields of the linked record.
+   */
+  public byte[] serialize(final ODocument doc, final Set<String> syncFields) throws IOException {
+    final ByteArrayOutputStream buffer = buffers.get();
+    buffer.reset();
+
+    final XContentGenerator generator = xContent.createGenerator(buffer);
+    generator.writeStartObject();
+    generator.writeStringField("@rid", doc.getIdentity().toString());
+    if (doc.getClassName() != null)
+      generator.writeStringField("@class", doc.getClassName());
+    generator.writeNumberField("@version", doc.getVersion());
+    generator.writeNumberField("@cluster", doc.getIdentity().getClusterId());
+    generator.writeNumberField("@position", doc.getIdentity().getClusterPosition());
+
+    for (String f : doc.fieldNames()) {
+      if (!syncFields.isEmpty() && !syncFields.contains(f))
+        // SKIP FIELD
+        continue;
+
+      writeField(generator, doc, f);
+    }
+
+    return close(generator, buffer);
+  }
+
+  /**
+   * Serializes only the fields passed and "@version", as the partial document of an update. The fields removed from the document
+   * are written as null.
+   */
+  public byte[] serializeFields(final ODocument doc, final Collection<String> fields) throws IOException {
+    final ByteArrayOutputStream buffer = buffers.get();
+    buffer.reset();
+
+    final XContentGenerator generator = xContent.createGenerator(buffer);
+    generator.writeStartObject();
+    generator.writeNumberField("@version", doc.getVersion());
+
+    for (String f : fields) {
+      if (doc.containsField(f))
+        writeField(generator, doc, f);
+      else
+        generator.writeNullField(f);
+    }
+
+    return close(generator, buffer);
+  }
+
+  /**
+   * Returns the format of the serialized documents. The binary formats (SMILE and CBOR) are smaller and faster to write than JSON
+   * and Elastic Search reads them natively.
+   */
+  public XContentType getContentType() {
+    return contentType;
+  }
+
+  /**
+   * Writes a field of the document: the link collections according to their policy, the projected links as objects and the other
+   * fields as their value.
+   */
+  protected void writeField(final XContentGenerator generator, final ODocument doc, final String f) throws IOException {
+    final Object value = doc.rawField(f);
+    if (links != null && value instanceof ORecordLazyMultiValue && !(value instanceof Map)) {
+      final OElasticSearchLinkPolicies.Policy policy = links.getPolicy(doc, f);
+      if (policy != null) {
+        writeLinks(generator, f, (ORecordLazyMultiValue) value, policy);
+        return;
+      }
+    }
+
+    if (projections != null && value instanceof OIdentifiable && ((OIdentifiable) value).getIdentity().isValid()) {
+      final String[] projected = projections.getFields(doc, f);
+      if (projected != null) {
+        generator.writeFieldName(f);
+        writeProjection(generator, (OIdentifiable) value, projected);
+        return;
+      }
+    }
+
+    generator.writeFieldName(f);
+    writeValue(generator, value);
+  }
+
+  /**
+   * Writes a link collection with a policy. With the child policy the links are indexed as separate documents.
+   */
+  protected void writeLinks(final XContentGenerator generator, final String fieldName, final ORecordLazyMultiValue value,
+      final OElasticSearchLinkPolicies.Policy policy) throws IOException {
+    switch (policy.getType()) {
+    case COUNT:
+      generator.writeNumberField(fieldName, value.size());
+      break;
+
+    case LIMIT:
+      // ONLY THE FIRST N RIDS ARE READ
+      generator.writeFieldName(fieldName);
+      generator.writeStartArray();
+      int written = 0;
+      for (Iterator<OIdentifiable> it = value.rawIterator(); written < policy.getLimit() && it.hasNext(); ++written)
+        generator.writeString(it.next().getIdentity().toString());
+      generator.writeEndArray();
+      break;
+
+    default:
+      // SKIP, CHILD
+      break;
+    }
+  }
+
+  /**
+   * Writes the link as an object with the "@rid" and the projected fields of the linked record, if it exists.
+   */
+  protected void writeProjection(final XContentGenerator generator, final OIdentifiable link, final String[] fields)
+      throws IOException {
+    generator.writeStartObject();
+    generator.writeStringField("@rid", link.getIdentity().toString());
+
+    final Map<String, Object> values = projections.project(link, fields);
+    if (values != null)
+      for (String f : fields) {
+        generator.writeFieldName(f);
+        writeValue(generator, values.get(f));
+      }
+
+    generator.writeEndObject();
+  }
+
+  protected void writeValue(final XContentGenerator generator, final Object value) throws IOException {
+    if (value == null)
+      generator.writeNull();
+
+    else if (value instanceof String)
+      generator.writeString((String) value);
+
+    else if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+      generator.writeNumber(((Number) value).intValue());
+
+    else if (value instanceof Long)
+      generator.writeNumber(((Long) value).longValue());
+
+    else if (value instanceof Double)
+      generator.writeNumber(((Double) value).doubleValue());
+
+    else if (value instanceof Float)
+      generator.writeNumber(((Float) value).floatValue());
+
+    else if (value instanceof BigDecimal)
+      generator.writeNumber(((BigDecimal) value).doubleValue());
+
+    else if (value instanceof Boolean)
+      generator.writeBoolean((Boolean) value);
+
+    else if (value instanceof Date)
+      generator.writeString(XContentBuilder.defaultDatePrinter.print(((Date) value).getTime()));
+
+    else if (value instanceof byte[])
+      generator.writeBinary((byte[]) value);
+
+    else if (value instanceof ODocument && isEmbedded((ODocument) value))
+      writeEmbedded(generator, (ODocument) value);
+
+    else if (value instanceof OIdentifiable)
+      // LINK
+      generator.writeString(((OIdentifiable) value).getIdentity().toString());
+
+    else if (value instanceof Map) {
+      generator.writeStartObject();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        generator.writeFieldName(String.valueOf(entry.getKey()));
+        writeValue(generator, entry.getValue());
+      }
+      generator.writeEndObject();
+
+    } else if (value instanceof ORecordLazyMultiValue) {
+      // RIDBAG OR COLLECTION OF LINKS: BROWSE THE RIDS WITHOUT LOADING THE RECORDS
+      generator.writeStartArray();
+      for (Iterator<OIdentifiable> it = ((ORecordLazyMultiValue) value).rawIterator(); it.hasNext(); )
+        generator.writeString(it.next().getIdentity().toString());
+      generator.writeEndArray();
+
+    } else if (value instanceof Iterable) {
+      generator.writeStartArray();
+      for (Object item : (Iterable<?>) value)
+        writeValue(generator, item);
+      generator.writeEndArray();
+
+    } else if (value instanceof Object[]) {
+      generator.writeStartArray();
+      for (Object item : (Object[]) value)
+        writeValue(generator, item);
+      generator.writeEndArray();
+
+    } else
+      generator.writeString(value.toString());
+  }
+
+  protected byte[] close(final XContentGenerator generator, final ByteArrayOutputStream buffer) throws IOException {
+    generator.writeEndObject();
+    generator.close();
+
+    final byte[] content = buffer.toByteArray();
+
+    if (buffer.size() > MAX_REUSED_BUFFER)
+      // DON'T KEEP HUGE BUFFERS IN MEMORY
+      buffers.remove();
+
+    return content;
+  }
+
+  /**
+   * Returns true if the document is embedded: declared as embedded or without an identity. A new linked document not saved yet has a
+   * temporary identity, so it's written as a link.
+   */
+  protected static boolean isEmbedded(final ODocument doc) {
+    return doc.isEmbedded() || !doc.getIdentity().isValid();
+  }
+
+  protected void writeEmbedded(final XContentGenerator generator, final ODocument doc) throws IOException {
+    generator.writeStartObject();
+    if (doc.getClassName() != null)
+      generator.writeStringField("@class", doc.getClassName());
+    for (String f : doc.fieldNames()) {
+      generator.writeFieldName(f);
+      writeValue(generator, doc.rawField(f));
+    }
+    generator.writeEndObject();
+  }
+}
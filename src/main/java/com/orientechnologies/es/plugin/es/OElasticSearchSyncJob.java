@@ -0,0 +1,665 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.common.collection.OIterableObject;
+import com.orientechnologies.common.io.OIOUtils;
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.orient.core.command.OCommandRequestText;
+import com.orientechnologies.orient.core.command.OCommandResultListener;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.OCommandSQL;
+import com.orientechnologies.orient.core.sql.query.OSQLAsynchQuery;
+import com.orientechnologies.orient.core.storage.impl.local.paginated.wal.OLogSequenceNumber;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Synchronization executed in background. The job browses ranges of record positions (or the result of a command) and keeps the
+ * last position acknowledged by Elastic Search for every range in a JSON file under the database directory, so a job interrupted
+ * by a crash or cancelled can be resumed from where it stopped.
+ * <p>
+ * A job on the entire database keeps the position of the write ahead log at its start: once completed, it becomes the high-water
+ * mark of the delta jobs, which synchronize only the records created, updated and deleted after it (see
+ * {@link OElasticSearchDeltaSync}).
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchSyncJob implements Runnable {
+  public static final String   DIRECTORY     = "es-sync-jobs";
+  private static final int     MAX_ERRORS    = 100;
+  private static final long    SAVE_INTERVAL = 5000;
+  private static final Pattern ID_FORMAT     = Pattern.compile("[A-Za-z0-9-]+");
+
+  public enum STATUS {
+    RUNNING, COMPLETED, FAILED, CANCELLED, INTERRUPTED
+  }
+
+  private final OElasticSearchPlugin                   es;
+  private final String                                 id;
+  private final String                                 dbName;
+  private final File                                   file;
+  private final String                                 command;
+  private final List<OElasticSearchParallelSync.Range> ranges;
+  private final int                                    parallelism;
+  private final boolean                                delta;
+  private boolean                                      reconcile;
+  private boolean                                      bulkLoad;
+  private ODocument                                    indexSettings;
+  private OLogSequenceNumber                           lsn;
+  private final Map<String, String>                    rebuildIndexes = new HashMap<String, String>();
+  private volatile long                                total;
+  private final List<String>                           errors    = new ArrayList<String>();
+  private final AtomicLong                             browsed   = new AtomicLong();
+  private final AtomicLong                             synced    = new AtomicLong();
+  private final AtomicLong                             bytes     = new AtomicLong();
+  private final AtomicLong                             divergent = new AtomicLong();
+  private final AtomicLong                             reindexed = new AtomicLong();
+  private final AtomicLong                             deleted   = new AtomicLong();
+  private ODatabaseDocumentTx                          db;
+  private volatile STATUS                              status;
+  private volatile boolean                             cancelled;
+  private volatile boolean                             failed;
+  // TRUE FROM prepare() TO THE END OF run(), GUARDED BY THIS
+  private boolean                                      executing;
+  private long                                         startedOn;
+  private long                                         endedOn;
+  private long                                         resumedOn;
+  private long                                         resumedRecords;
+  private long                                         lastSave;
+
+  public OElasticSearchSyncJob(final OElasticSearchPlugin es, final ODatabaseDocumentTx db, final String command,
+      final List<OElasticSearchParallelSync.Range> ranges, final int parallelism, final long total) {
+    this(es, db, command, ranges, parallelism, total, false, null);
+  }
+
+  /**
+   * Creates a delta job if delta is true. The LSN, if not null, is saved as high-water mark when the job completes.
+   */
+  public OElasticSearchSyncJob(final OElasticSearchPlugin es, final ODatabaseDocumentTx db, final String command,
+      final List<OElasticSearchParallelSync.Range> ranges, final int parallelism, final long total, final boolean delta,
+      final OLogSequenceNumber lsn) {
+    this.es = es;
+    this.id = UUID.randomUUID().toString();
+    this.dbName = db.getName();
+    this.file = getFile(es, dbName, id);
+    this.command = command;
+    this.ranges = ranges;
+    this.parallelism = parallelism;
+    this.total = total;
+    this.delta = delta;
+    this.lsn = lsn;
+    this.status = STATUS.RUNNING;
+  }
+
+  /**
+   * Creates a job that rebuilds the classes in new indexes, swapped with the current ones when the job completes (CLASS layout
+   * only).
+   */
+  public OElasticSearchSyncJob(final OElasticSearchPlugin es, final ODatabaseDocumentTx db,
+      final List<OElasticSearchParallelSync.Range> ranges, final int parallelism, final long total,
+      final Collection<String> rebuildClasses) {
+    this(es, db, null, ranges, parallelism, total, false, null);
+    for (String cl : rebuildClasses)
+      rebuildIndexes.put(cl, null);
+  }
+
+  /**
+   * Creates a job that verifies the ranges against the indexes and repairs only the divergent records (see
+   * {@link OElasticSearchReconcile}).
+   */
+  public static OElasticSearchSyncJob createReconcile(final OElasticSearchPlugin es, final ODatabaseDocumentTx db,
+      final List<OElasticSearchParallelSync.Range> ranges, final int parallelism, final long total) {
+    final OElasticSearchSyncJob job = new OElasticSearchSyncJob(es, db, null, ranges, parallelism, total, false, null);
+    job.reconcile = true;
+    return job;
+  }
+
+  /**
+   * Loads a job saved on disk. If it was running, it has been interrupted by a shutdown or a crash.
+   */
+  public OElasticSearchSyncJob(final OElasticSearchPlugin es, final String dbName, final String id) throws IOException {
+    this.es = es;
+    this.id = id;
+    this.dbName = dbName;
+    this.file = getFile(es, dbName, id);
+
+    final ODocument doc = new ODocument().fromJSON(OIOUtils.readFileAsString(file), "noMap");
+    this.command = doc.field("command");
+    this.parallelism = ((Number) doc.field("parallelism")).intValue();
+    this.total = ((Number) doc.field("total")).longValue();
+    this.delta = Boolean.TRUE.equals(doc.field("delta"));
+    this.reconcile = Boolean.TRUE.equals(doc.field("reconcile"));
+    this.bulkLoad = Boolean.TRUE.equals(doc.field("bulkLoad"));
+    this.indexSettings = doc.field("indexSettings");
+    if (doc.field("lsnSegment") != null)
+      this.lsn = new OLogSequenceNumber(((Number) doc.field("lsnSegment")).longValue(),
+          ((Number) doc.field("lsnPosition")).longValue());
+    this.startedOn = ((Number) doc.field("startedOn")).longValue();
+    this.endedOn = doc.field("endedOn") != null ? ((Number) doc.field("endedOn")).longValue() : 0;
+    this.browsed.set(((Number) doc.field("browsed")).longValue());
+    this.synced.set(((Number) doc.field("synced")).longValue());
+    this.bytes.set(((Number) doc.field("bytes")).longValue());
+    if (reconcile) {
+      this.divergent.set(((Number) doc.field("divergentRanges")).longValue());
+      this.reindexed.set(((Number) doc.field("reindexed")).longValue());
+      this.deleted.set(((Number) doc.field("deleted")).longValue());
+    }
+
+    final STATUS savedStatus = STATUS.valueOf((String) doc.field("status"));
+    this.status = savedStatus == STATUS.RUNNING ? STATUS.INTERRUPTED : savedStatus;
+
+    this.ranges = new ArrayList<OElasticSearchParallelSync.Range>();
+    final Collection<ODocument> savedRanges = doc.field("ranges");
+    if (savedRanges != null)
+      for (ODocument r : savedRanges)
+        ranges.add(OElasticSearchParallelSync.Range.fromDocument(r));
+
+    final ODocument savedRebuild = doc.field("rebuild");
+    if (savedRebuild != null)
+      for (String cl : savedRebuild.fieldNames())
+        rebuildIndexes.put(cl, (String) savedRebuild.field(cl));
+
+    final Collection<String> savedErrors = doc.field("errors");
+    if (savedErrors != null)
+      errors.addAll(savedErrors);
+  }
+
+  /**
+   * Returns true if the id has the format of the generated ids, so it can be used as a file name.
+   */
+  public static boolean isValidId(final String id) {
+    return id != null && ID_FORMAT.matcher(id).matches();
+  }
+
+  public static File getFile(final OElasticSearchPlugin es, final String dbName, final String id) {
+    if (!isValidId(id))
+      throw new IllegalArgumentException("Invalid synchronization job id: " + id);
+    return new File(es.getDatabasePath(dbName) + "/" + DIRECTORY, id + ".json");
+  }
+
+  /**
+   * Prepares the job to be executed on a copy of the database instance, so it survives the HTTP request. A job can be resumed
+   * only if it is not running and it is not based on a command or a delta: a delta job can be simply executed again. The checks
+   * and the transition to RUNNING are atomic, so two concurrent resumes cannot both start the job.
+   */
+  public synchronized void prepare(final ODatabaseDocumentTx requestDb) {
+    if (executing)
+      throw new IllegalStateException("Synchronization job " + id + " is already running");
+    if (startedOn > 0 && (command != null || delta || status == STATUS.COMPLETED))
+      throw new IllegalStateException("Synchronization job " + id + " cannot be resumed");
+
+    if (!rebuildIndexes.isEmpty()) {
+      // CREATE THE NEW INDEXES, OR WRITE AGAIN IN THE ONES OF THE INTERRUPTED JOB
+      final OElasticSearchDatabaseConfiguration esConfig = es.getESClient(dbName);
+      for (Map.Entry<String, String> entry : rebuildIndexes.entrySet())
+        entry.setValue(esConfig.startRebuild(entry.getKey(), entry.getValue()));
+    }
+
+    if (bulkLoad && indexSettings == null)
+      // AFTER AN INTERRUPTION THE INDEXES ARE STILL IN BULK-LOAD MODE AND THE SAVED SETTINGS ARE THE ORIGINAL ONES
+      startBulkLoad(requestDb);
+
+    db = requestDb.copy();
+    requestDb.activateOnCurrentThread();
+
+    if (startedOn == 0)
+      startedOn = System.currentTimeMillis();
+    else
+      OLogManager.instance().info(this, "ES plugin: resuming synchronization job %s of database %s", id, dbName);
+
+    resumedOn = System.currentTimeMillis();
+    resumedRecords = browsed.get();
+    endedOn = 0;
+    cancelled = false;
+    failed = false;
+    status = STATUS.RUNNING;
+    executing = true;
+    save();
+  }
+
+  @Override
+  public void run() {
+    db.activateOnCurrentThread();
+    try {
+      if (delta) {
+        syncDelta();
+
+      } else if (command != null) {
+        syncCommand();
+
+      } else {
+        final List<OElasticSearchParallelSync.Range> pending = new ArrayList<OElasticSearchParallelSync.Range>();
+        for (OElasticSearchParallelSync.Range r : ranges)
+          if (!r.isCompleted())
+            pending.add(r);
+
+        new OElasticSearchParallelSync(es, dbName, parallelism).execute(db, pending, this);
+      }
+
+      final STATUS result = failed ? STATUS.FAILED : cancelled ? STATUS.CANCELLED : STATUS.COMPLETED;
+
+      if (indexSettings != null)
+        // THE INDEXES ARE READY BEFORE THE JOB IS REPORTED AS ENDED AND BEFORE THE REBUILT ONES ARE SWAPPED
+        endBulkLoad(result == STATUS.COMPLETED);
+
+      status = result;
+
+      if (status == STATUS.COMPLETED && lsn != null)
+        // MOVE THE HIGH-WATER MARK: THE NEXT DELTA STARTS FROM HERE
+        new OElasticSearchDeltaSync(es, dbName).saveCheckpoint(lsn);
+
+      if (status == STATUS.COMPLETED)
+        // SWAP THE ALIASES TO THE REBUILT INDEXES
+        for (String cl : rebuildIndexes.keySet())
+          es.getESClient(dbName).completeRebuild(cl);
+
+      // THE CACHED SEARCHES DON'T SEE THE RECORDS WRITTEN BY THE JOB
+      es.getESClient(dbName).getSearchCache().clear();
+
+    } catch (Exception e) {
+      OLogManager.instance().error(this, "ES plugin: error on synchronization job %s of database %s", e, id, dbName);
+      addError(e.toString());
+      status = STATUS.FAILED;
+    } finally {
+      if (indexSettings != null)
+        endBulkLoad(false);
+      endedOn = System.currentTimeMillis();
+      save();
+      db.close();
+      synchronized (this) {
+        executing = false;
+      }
+    }
+
+    OLogManager.instance()
+        .info(this, "ES plugin: synchronization job %s of database %s %s: synchronized %d records", id, dbName, status, synced.get());
+  }
+
+  /**
+   * Synchronizes the result of the command. The queries are executed asynchronously and every record is passed to the bulk as soon
+   * as it is found, so the result is never held in memory and, when Elastic Search is slower, the bulk slows down the query. The
+   * other commands are executed and then their result is synchronized.
+   */
+  protected void syncCommand() {
+    final OElasticSearchDatabaseSync sync = createDatabaseSync();
+    final OElasticSearchBulk bulk = sync.createBulk(createListener(null));
+    try {
+      if (isQuery(command)) {
+        db.query(new OSQLAsynchQuery<ODocument>(command, new OCommandResultListener() {
+          @Override
+          public boolean result(final Object iRecord) {
+            if (isStopped())
+              // STOP THE QUERY
+              return false;
+
+            browsed.incrementAndGet();
+            if (iRecord instanceof OIdentifiable)
+              sync.syncRecord((OIdentifiable) iRecord, bulk);
+            return true;
+          }
+
+          @Override
+          public void end() {
+          }
+
+          @Override
+          public Object getResult() {
+            return null;
+          }
+        }));
+        return;
+      }
+
+      final Object result = db.command(new OCommandSQL(command)).execute();
+
+      final Iterator<? extends OIdentifiable> iterator;
+      if (result instanceof OIdentifiable)
+        iterator = new OIterableObject<OIdentifiable>((OIdentifiable) result);
+      else if (result instanceof Collection) {
+        // THE RESULT IS ALREADY IN MEMORY: KEEP ONLY THE RECORDS
+        final List<OIdentifiable> records = new ArrayList<OIdentifiable>(((Collection<?>) result).size());
+        for (Object item : (Collection<?>) result)
+          if (item instanceof OIdentifiable)
+            records.add((OIdentifiable) item);
+        iterator = records.iterator();
+      } else
+        throw new IllegalArgumentException("The result of command '" + command + "' cannot be synchronized");
+
+      sync.syncBatch(wrap(iterator), bulk);
+
+    } finally {
+      bulk.close();
+    }
+  }
+
+  protected static boolean isQuery(final String command) {
+    final String text = command.trim().toLowerCase();
+    return text.startsWith("select ") || text.startsWith("traverse ");
+  }
+
+  /**
+   * Synchronizes the records changed after the high-water mark. The records deleted are removed from the index.
+   */
+  protected void syncDelta() throws IOException {
+    final List<ORID> changed = new ArrayList<ORID>();
+    final List<ORID> deleted = new ArrayList<ORID>();
+    lsn = new OElasticSearchDeltaSync(es, dbName).collectChanges(db, changed, deleted);
+    total = changed.size() + deleted.size();
+
+    final OElasticSearchDatabaseSync sync = es.getDatabase(dbName);
+    final OElasticSearchBulk bulk = sync.createBulk(createListener(null));
+    try {
+      sync.syncBatch(wrap(changed.iterator()), bulk);
+
+      for (Iterator<ORID> it = wrap(deleted.iterator()); it.hasNext(); ) {
+        final ORID rid = it.next();
+        final OClass cls = db.getMetadata().getImmutableSchemaSnapshot().getClassByClusterId(rid.getClusterId());
+        if (cls != null && es.getESClient(dbName).isOwner(rid.getClusterId()))
+          bulk.add(new DeleteRequest(sync.getIndexName(cls.getName()), cls.getName(), rid.toString()));
+      }
+    } finally {
+      bulk.close();
+    }
+  }
+
+  /**
+   * Returns the synchronizer used by the job: a rebuild job writes in the new indexes.
+   */
+  public OElasticSearchDatabaseSync createDatabaseSync() {
+    final OElasticSearchDatabaseSync sync = es.getDatabase(dbName);
+    sync.setRebuild(!rebuildIndexes.isEmpty());
+    return sync;
+  }
+
+  /**
+   * Stops the job at the next record. The job can be resumed later.
+   */
+  public void cancel() {
+    cancelled = true;
+
+    if (status != STATUS.RUNNING && indexSettings != null)
+      // INTERRUPTED BULK LOAD: THE INDEXES ARE RESTORED ALSO IF THE JOB WILL NOT BE RESUMED
+      endBulkLoad(false);
+  }
+
+  public boolean isBulkLoad() {
+    return bulkLoad;
+  }
+
+  /**
+   * Enables the bulk-load mode (see {@link OElasticSearchBulkLoad}), before the job is started.
+   */
+  public void setBulkLoad(final boolean bulkLoad) {
+    this.bulkLoad = bulkLoad;
+  }
+
+  /**
+   * Creates the mappings of the classes of the job and disables refresh and replicas of their indexes. The original settings are
+   * saved with the job.
+   */
+  protected void startBulkLoad(final ODatabaseDocumentTx requestDb) {
+    final Set<String> classes = new LinkedHashSet<String>();
+    for (OElasticSearchParallelSync.Range r : ranges) {
+      final OClass cls = requestDb.getMetadata().getImmutableSchemaSnapshot().getClassByClusterId(r.clusterId);
+      if (cls != null)
+        classes.add(cls.getName());
+    }
+
+    final OElasticSearchBulkLoad load = new OElasticSearchBulkLoad(es.getESClient(dbName));
+    final Map<String, String> indexes = load.getIndexes(classes, rebuildIndexes);
+    load.createMappings(requestDb, indexes);
+    indexSettings = load.disableRefresh(indexes.values());
+  }
+
+  protected synchronized void endBulkLoad(final boolean completed) {
+    if (indexSettings == null)
+      return;
+
+    new OElasticSearchBulkLoad(es.getESClient(dbName)).restore(indexSettings, completed);
+    indexSettings = null;
+    save();
+  }
+
+  public boolean isReconcile() {
+    return reconcile;
+  }
+
+  /**
+   * Counts the records verified by a reconcile job.
+   */
+  public void onVerified(final long records) {
+    browsed.addAndGet(records);
+  }
+
+  public void onDivergentRange() {
+    divergent.incrementAndGet();
+  }
+
+  /**
+   * Counts a record re-indexed or, if delete is true, deleted by a reconcile job.
+   */
+  public void onRepaired(final boolean delete) {
+    (delete ? deleted : reindexed).incrementAndGet();
+  }
+
+  /**
+   * Stops the job as failed: the workers stop at the next record and the job can be resumed from the last checkpoint.
+   */
+  public void fail() {
+    failed = true;
+  }
+
+  public boolean isStopped() {
+    return cancelled || failed;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getDatabaseName() {
+    return dbName;
+  }
+
+  public STATUS getStatus() {
+    return status;
+  }
+
+  /**
+   * Wraps an iterator to stop browsing when the job is stopped and to count the browsed records.
+   */
+  public <T> Iterator<T> wrap(final Iterator<T> iterator) {
+    return new Iterator<T>() {
+      @Override
+      public boolean hasNext() {
+        return !isStopped() && iterator.hasNext();
+      }
+
+      @Override
+      public T next() {
+        browsed.incrementAndGet();
+        return iterator.next();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("remove");
+      }
+    };
+  }
+
+  /**
+   * Creates a bulk listener that counts the acknowledged records and, if a range is passed, moves its checkpoint to the last
+   * record acknowledged.
+   */
+  public BulkProcessor.Listener createListener(final OElasticSearchParallelSync.Range range) {
+    return new BulkProcessor.Listener() {
+      @Override
+      public void beforeBulk(final long executionId, final BulkRequest request) {
+      }
+
+      @Override
+      public void afterBulk(final long executionId, final BulkRequest request, final BulkResponse response) {
+        synced.addAndGet(request.numberOfActions());
+        bytes.addAndGet(request.estimatedSizeInBytes());
+
+        if (response.hasFailures())
+          for (BulkItemResponse item : response.getItems())
+            if (item.isFailed())
+              addError(item.getId() + ": " + item.getFailureMessage());
+
+        if (range != null && !request.requests().isEmpty())
+          range.acknowledge(request.requests().get(request.requests().size() - 1));
+
+        checkpoint();
+      }
+
+      @Override
+      public void afterBulk(final long executionId, final BulkRequest request, final Throwable failure) {
+        // STOP THE JOB: IT CAN BE RESUMED FROM THE LAST CHECKPOINT
+        addError(failure.toString());
+        failed = true;
+      }
+    };
+  }
+
+  /**
+   * Saves the job on disk, at most every few seconds.
+   */
+  public void checkpoint() {
+    if (System.currentTimeMillis() - lastSave > SAVE_INTERVAL)
+      save();
+  }
+
+  public synchronized void save() {
+    lastSave = System.currentTimeMillis();
+    try {
+      file.getParentFile().mkdirs();
+      OIOUtils.writeFile(file, toDocument(true).toJSON());
+    } catch (IOException e) {
+      OLogManager.instance().error(this, "ES plugin: error on saving synchronization job %s", e, id);
+    }
+  }
+
+  public void addError(final String error) {
+    synchronized (errors) {
+      if (errors.size() >= MAX_ERRORS)
+        errors.remove(0);
+      errors.add(error);
+    }
+  }
+
+  /**
+   * Returns the status of the job with progress, throughput and estimated time to complete.
+   */
+  public ODocument toDocument(final boolean withRanges) {
+    final ODocument doc = new ODocument();
+    doc.field("id", id);
+    doc.field("database", dbName);
+    doc.field("status", status.toString());
+    if (command != null)
+      doc.field("command", command);
+    if (delta)
+      doc.field("delta", true);
+    if (reconcile) {
+      doc.field("reconcile", true);
+      doc.field("divergentRanges", divergent.get());
+      doc.field("reindexed", reindexed.get());
+      doc.field("deleted", deleted.get());
+    }
+    if (lsn != null) {
+      doc.field("lsnSegment", lsn.getSegment());
+      doc.field("lsnPosition", lsn.getPosition());
+    }
+    if (!rebuildIndexes.isEmpty())
+      doc.field("rebuild", new ODocument().fromMap(rebuildIndexes), OType.EMBEDDED);
+    if (bulkLoad)
+      doc.field("bulkLoad", true);
+    if (indexSettings != null)
+      doc.field("indexSettings", indexSettings, OType.EMBEDDED);
+    doc.field("parallelism", parallelism);
+    doc.field("startedOn", startedOn);
+    if (endedOn > 0)
+      doc.field("endedOn", endedOn);
+    doc.field("total", total);
+    doc.field("browsed", browsed.get());
+    doc.field("synced", synced.get());
+    doc.field("bytes", bytes.get());
+
+    final long elapsed = (endedOn > 0 ? endedOn : System.currentTimeMillis()) - startedOn;
+    if (elapsed > 0) {
+      doc.field("recordsPerSecond", synced.get() * 1000 / elapsed);
+      doc.field("bytesPerSecond", bytes.get() * 1000 / elapsed);
+    }
+
+    if (total > 0)
+      doc.field("progress", Math.min(100f, browsed.get() * 100f / total));
+
+    if (status == STATUS.RUNNING && browsed.get() > resumedRecords && total > browsed.get()) {
+      // ESTIMATE ON THE RECORDS BROWSED SINCE THE JOB HAS BEEN (RE)STARTED
+      final long now = System.currentTimeMillis();
+      doc.field("eta", new Date(now + (total - browsed.get()) * (now - resumedOn) / (browsed.get() - resumedRecords)));
+    }
+
+    int completed = 0;
+    for (OElasticSearchParallelSync.Range r : ranges)
+      if (r.isCompleted())
+        completed++;
+    doc.field("ranges", ranges.size());
+    doc.field("completedRanges", completed);
+
+    synchronized (errors) {
+      doc.field("errors", new ArrayList<String>(errors));
+    }
+
+    if (withRanges) {
+      final List<ODocument> savedRanges = new ArrayList<ODocument>(ranges.size());
+      for (OElasticSearchParallelSync.Range r : ranges)
+        savedRanges.add(r.toDocument());
+      doc.field("ranges", savedRanges);
+    }
+
+    return doc;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Luca Garulli
+ */
+public class OElasticSearchBulkControllerTest {
+  private static final String DB = "test";
+
+  @Test
+  public void testRejectedItemRetried() throws InterruptedException {
+    final OElasticSearchFakeClient es = new OElasticSearchFakeClient(new OElasticSearchFakeClient.Handler() {
+      @Override
+      public RestStatus onItem(final int attempt, final DocumentRequest request) {
+        return attempt == 0 && request.id().equals("#9:1") ? RestStatus.TOO_MANY_REQUESTS : null;
+      }
+    });
+
+    final OElasticSearchBulkController controller = createController(es);
+    final BulkResponse response = controller.execute(createRequest(3));
+
+    Assert.assertFalse(response.hasFailures());
+    assertPositions(response);
+    Assert.assertEquals(1, controller.getRetried());
+    Assert.assertEquals(1, controller.getRejected());
+  }
+
+  @Test
+  public void testRejectedItemFailedOnRetry() throws InterruptedException {
+    final OElasticSearchFakeClient es = new OElasticSearchFakeClient(new OElasticSearchFakeClient.Handler() {
+      @Override
+      public RestStatus onItem(final int attempt, final DocumentRequest request) {
+        if (request.id().equals("#9:2"))
+          return attempt == 0 ? RestStatus.TOO_MANY_REQUESTS : RestStatus.BAD_REQUEST;
+        return null;
+      }
+    });
+
+    final OElasticSearchBulkController controller = createController(es);
+    final BulkResponse response = controller.execute(createRequest(4));
+
+    Assert.assertTrue(response.hasFailures());
+    assertPositions(response);
+
+    final BulkItemResponse[] items = response.getItems();
+    Assert.assertFalse(items[0].isFailed());
+    Assert.assertFalse(items[1].isFailed());
+    Assert.assertTrue(items[2].isFailed());
+    Assert.assertEquals(RestStatus.BAD_REQUEST, items[2].getFailure().getStatus());
+    Assert.assertFalse(items[3].isFailed());
+  }
+
+  protected static OElasticSearchBulkController createController(final OElasticSearchFakeClient es) {
+    final ODocument cfg = new ODocument().field("bulk", new ODocument().fields("retryDelay", 1));
+    return new OElasticSearchBulkController(DB, es.getClient(), cfg);
+  }
+
+  protected static BulkRequest createRequest(final int actions) {
+    final BulkRequest request = new BulkRequest();
+    for (int i = 0; i < actions; ++i)
+      request.add(new IndexRequest(DB, "V", "#9:" + i).source("{\"position\":" + i + "}"));
+    return request;
+  }
+
+  protected static void assertPositions(final BulkResponse response) {
+    final BulkItemResponse[] items = response.getItems();
+    for (int i = 0; i < items.length; ++i) {
+      Assert.assertEquals(i, items[i].getItemId());
+      Assert.assertEquals("#9:" + i, items[i].getId());
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.rest.RestStatus;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Elastic Search client that executes only the bulk requests, through a handler that decides the result of every item. The ids of
+ * the items are recorded in the order they are received.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchFakeClient implements InvocationHandler {
+  /**
+   * Decides the result of a bulk request. Returns null to accept the item, otherwise the status of its failure. Throwing fails the
+   * request as a whole.
+   */
+  public interface Handler {
+    RestStatus onItem(int attempt, DocumentRequest request);
+  }
+
+  private final Handler      handler;
+  private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+  private int                attempts;
+
+  public OElasticSearchFakeClient(final Handler handler) {
+    this.handler = handler;
+  }
+
+  public Client getClient() {
+    return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class<?>[] { Client.class }, this);
+  }
+
+  public List<String> getReceived() {
+    return received;
+  }
+
+  public synchronized int getAttempts() {
+    return attempts;
+  }
+
+  @Override
+  public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+    if (!method.getName().equals("bulk") || args.length != 1)
+      throw new UnsupportedOperationException(method.getName());
+
+    final int attempt;
+    synchronized (this) {
+      attempt = attempts++;
+    }
+
+    final List<ActionRequest> requests = ((BulkRequest) args[0]).requests();
+    final BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+    for (int i = 0; i < items.length; ++i) {
+      final DocumentRequest request = (DocumentRequest) requests.get(i);
+      final RestStatus status = handler.onItem(attempt, request);
+      if (status == null) {
+        received.add(request.id());
+        items[i] = new BulkItemResponse(i, "index", new IndexResponse(request.index(), request.type(), request.id(), 1, true));
+      } else
+        items[i] = new BulkItemResponse(i, "index",
+            new BulkItemResponse.Failure(request.index(), request.type(), request.id(), new FakeException(status)));
+    }
+
+    final PlainActionFuture<BulkResponse> future = PlainActionFuture.newFuture();
+    future.onResponse(new BulkResponse(items, 1));
+    return future;
+  }
+
+  /**
+   * Failure of an item with a REST status.
+   */
+  public static class FakeException extends org.elasticsearch.ElasticsearchException {
+    private final RestStatus status;
+
+    public FakeException(final RestStatus status) {
+      super(status == RestStatus.TOO_MANY_REQUESTS ? "EsRejectedExecutionException" : status.name());
+      this.status = status;
+    }
+
+    @Override
+    public RestStatus status() {
+      return status;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes written in the journal while Elastic Search is not available are replayed, in order, after a restart.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchJournalTest {
+  private static final String DB = "test";
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRecovery() throws Exception {
+    final File databasePath = folder.newFolder(DB);
+
+    // ELASTIC SEARCH NOT AVAILABLE: THE CHANGES STAY IN THE JOURNAL
+    final OElasticSearchFakeClient down = new OElasticSearchFakeClient(new OElasticSearchFakeClient.Handler() {
+      @Override
+      public RestStatus onItem(final int attempt, final DocumentRequest request) {
+        throw new NoNodeAvailableException("down");
+      }
+    });
+    OElasticSearchReplicator replicator = createReplicator(down, databasePath);
+    replicator.replicate(new IndexRequest(DB, "V", "#9:0").routing("a").source("{\"position\":0}"));
+    replicator.replicate(new UpdateRequest(DB, "V", "#9:0").routing("a").doc("{\"position\":1}"));
+    replicator.replicate(new DeleteRequest(DB, "V", "#9:1").routing("b"));
+    Assert.assertEquals(3, replicator.getJournal().getAppended());
+    replicator.close();
+    Assert.assertEquals(0, replicator.getSent());
+
+    // RESTART
+    final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    final OElasticSearchFakeClient up = new OElasticSearchFakeClient(new OElasticSearchFakeClient.Handler() {
+      @Override
+      public RestStatus onItem(final int attempt, final DocumentRequest request) {
+        received.add(request.getClass().getSimpleName() + " " + request.id() + "@" + request.routing());
+        return null;
+      }
+    });
+    replicator = createReplicator(up, databasePath);
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (replicator.getJournal().getReplayed() < 3 && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    replicator.close();
+
+    Assert.assertEquals(Arrays.asList("IndexRequest #9:0@a", "UpdateRequest #9:0@a", "DeleteRequest #9:1@b"), received);
+
+    // ACKNOWLEDGED: NOT REPLAYED AGAIN
+    received.clear();
+    replicator = createReplicator(up, databasePath);
+    Thread.sleep(200);
+    replicator.close();
+    Assert.assertTrue(received.isEmpty());
+  }
+
+  protected static OElasticSearchReplicator createReplicator(final OElasticSearchFakeClient es, final File databasePath) {
+    final ODocument cfg = new ODocument().fromJSON(
+        "{\"replication\":{\"mode\":\"journal\",\"maxLatency\":10,\"journal\":{\"segmentSizeMB\":1,\"maxSizeMB\":4}},"
+            + "\"bulk\":{\"maxRetries\":0,\"retryDelay\":1}}");
+    return new OElasticSearchReplicator(DB, databasePath.getAbsolutePath(),
+        new OElasticSearchBulkController(DB, es.getClient(), cfg), cfg, new OElasticSearchMetrics(DB));
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.server.distributed.ODistributedConfiguration;
+import com.orientechnologies.orient.server.distributed.ODistributedServerManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The hooks run on every server (distributed execution mode BOTH): the ownership must assign every cluster to exactly one of the
+ * online servers, also after a server left.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchOwnershipTest {
+  private static final String   DB       = "test";
+  private static final String[] CLUSTERS = { "order_1", "order_2", "customer" };
+
+  private final Set<String>               online        = new TreeSet<String>();
+  private final ODistributedConfiguration configuration = new ODistributedConfiguration(new ODocument().fromJSON(
+      "{\"clusters\":{\"*\":{\"servers\":[\"<NEW_NODE>\"]},\"order_1\":{\"servers\":[\"node1\",\"node2\",\"node3\"]},"
+          + "\"order_2\":{\"servers\":[\"node2\",\"node1\"]}}}", "noMap"));
+
+  @Test
+  public void testOneOwnerPerCluster() {
+    online.addAll(Arrays.asList("node1", "node2", "node3"));
+    assertOneOwner(createOwnerships("node1", "node2", "node3"));
+  }
+
+  @Test
+  public void testFailover() {
+    online.addAll(Arrays.asList("node2", "node3"));
+    final List<OElasticSearchOwnership> ownerships = createOwnerships("node2", "node3");
+    assertOneOwner(ownerships);
+
+    // THE CLUSTERS OF THE SERVER THAT LEFT ARE INDEXED BY THE NEXT SERVER OF THEIR LIST
+    Assert.assertEquals("node2", ownerships.get(0).getOwner("order_1"));
+    Assert.assertEquals("node2", ownerships.get(1).getOwner("order_1"));
+  }
+
+  protected void assertOneOwner(final List<OElasticSearchOwnership> ownerships) {
+    for (String cluster : CLUSTERS) {
+      final Set<String> owners = new TreeSet<String>();
+      for (OElasticSearchOwnership ownership : ownerships)
+        owners.add(ownership.getOwner(cluster));
+      Assert.assertEquals("Owners of cluster " + cluster, 1, owners.size());
+      Assert.assertTrue(online.contains(owners.iterator().next()));
+    }
+  }
+
+  protected List<OElasticSearchOwnership> createOwnerships(final String... nodes) {
+    final List<OElasticSearchOwnership> ownerships = new ArrayList<OElasticSearchOwnership>();
+    for (String node : nodes)
+      ownerships.add(new OElasticSearchOwnership(DB, createManager(node)));
+    return ownerships;
+  }
+
+  protected ODistributedServerManager createManager(final String localNode) {
+    return (ODistributedServerManager) Proxy
+        .newProxyInstance(ODistributedServerManager.class.getClassLoader(), new Class<?>[] { ODistributedServerManager.class },
+            new InvocationHandler() {
+              @Override
+              public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                final String name = method.getName();
+                if (name.equals("getLocalNodeName"))
+                  return localNode;
+                if (name.equals("isNodeOnline"))
+                  return online.contains(args[0]);
+                if (name.equals("getOnlineNodes"))
+                  return new ArrayList<String>(online);
+                if (name.equals("getDatabaseConfiguration"))
+                  return configuration;
+                if (name.equals("registerLifecycleListener") || name.equals("unregisterLifecycleListener"))
+                  return proxy;
+                throw new UnsupportedOperationException(name);
+              }
+            });
+  }
+}
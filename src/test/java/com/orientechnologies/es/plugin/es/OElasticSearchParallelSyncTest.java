@@ -0,0 +1,69 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checkpoints of the ranges of the synchronization jobs.
+ *
+ * @author Luca Garulli
+ */
+public class OElasticSearchParallelSyncTest {
+  @Test
+  public void testAcknowledge() {
+    final OElasticSearchParallelSync.Range range = new OElasticSearchParallelSync.Range(9, 100, 199);
+    Assert.assertEquals(99, range.getLast());
+
+    // THE RECORD OF THE LAST REQUEST COULD HAVE MORE DOCUMENTS IN THE NEXT BULK: THE CHECKPOINT STOPS BEFORE IT
+    range.acknowledge(new IndexRequest("db", "V", "#9:120"));
+    Assert.assertEquals(119, range.getLast());
+
+    range.acknowledge(new IndexRequest("db", "V", "#9:150/out"));
+    Assert.assertEquals(149, range.getLast());
+
+    // NEVER BACKWARDS, NEVER FROM ANOTHER CLUSTER
+    range.acknowledge(new DeleteRequest("db", "V", "#9:130"));
+    range.acknowledge(new IndexRequest("db", "V", "#10:180"));
+    Assert.assertEquals(149, range.getLast());
+    Assert.assertFalse(range.isCompleted());
+
+    range.complete();
+    Assert.assertTrue(range.isCompleted());
+  }
+
+  @Test
+  public void testResume() {
+    final OElasticSearchParallelSync.Range range = new OElasticSearchParallelSync.Range(9, 100, 199);
+    range.acknowledge(new IndexRequest("db", "V", "#9:140"));
+
+    final ODocument saved = new ODocument().fromJSON(range.toDocument().toJSON());
+    final OElasticSearchParallelSync.Range resumed = OElasticSearchParallelSync.Range.fromDocument(saved);
+    Assert.assertEquals(9, resumed.clusterId);
+    Assert.assertEquals(100, resumed.from);
+    Assert.assertEquals(199, resumed.to);
+    Assert.assertEquals(139, resumed.getLast());
+    Assert.assertFalse(resumed.isCompleted());
+  }
+}
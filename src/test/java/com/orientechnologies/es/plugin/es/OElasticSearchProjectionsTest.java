@@ -0,0 +1,86 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.record.ORecordInternal;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * @author Luca Garulli
+ */
+public class OElasticSearchProjectionsTest {
+  private static final String[] FIELDS = { "name" };
+
+  @Test
+  public void testCached() {
+    final OElasticSearchProjections projections = createProjections();
+    final ODocument customer = createCustomer(new ORecordId(9, 1), "Acme");
+
+    Assert.assertEquals("Acme", projections.project(customer, FIELDS).get("name"));
+    Assert.assertEquals("Acme", projections.project(customer, FIELDS).get("name"));
+    Assert.assertEquals(1l, projections.toDocument().field("hits"));
+    Assert.assertEquals(1l, projections.toDocument().field("misses"));
+
+    // ONLY THE CLUSTERS OF THE PROJECTED RECORDS ARE TRACKED
+    Assert.assertTrue(projections.isProjected(new ORecordId(9, 2)));
+    Assert.assertFalse(projections.isProjected(new ORecordId(10, 1)));
+
+    projections.onChange(customer.getIdentity());
+    customer.field("name", "Acme Inc");
+    Assert.assertEquals("Acme Inc", projections.project(customer, FIELDS).get("name"));
+  }
+
+  @Test
+  public void testChangeDuringLoad() {
+    final OElasticSearchProjections projections = createProjections();
+    projections.project(createCustomer(new ORecordId(9, 1), "Other"), FIELDS);
+
+    final ORecordId rid = new ORecordId(9, 2);
+    final ODocument customer = new ODocument() {
+      @Override
+      public <RET> RET rawField(final String iFieldName) {
+        // THE RECORD IS UPDATED WHILE ITS PREVIOUS VERSION IS LOADED
+        projections.onChange(rid);
+        return super.rawField(iFieldName);
+      }
+    };
+    ORecordInternal.setIdentity(customer, rid);
+    customer.field("name", "Acme");
+
+    projections.project(customer, FIELDS);
+    Assert.assertEquals(1, (int) projections.toDocument().<Integer>field("size"));
+  }
+
+  protected static OElasticSearchProjections createProjections() {
+    return new OElasticSearchProjections(new ODocument()
+        .field("projection", new ODocument().field("classes", new ODocument().field("Order", Arrays.asList("customer.name")))));
+  }
+
+  protected static ODocument createCustomer(final ORecordId rid, final String name) {
+    final ODocument customer = new ODocument().field("name", name);
+    ORecordInternal.setIdentity(customer, rid);
+    return customer;
+  }
+}
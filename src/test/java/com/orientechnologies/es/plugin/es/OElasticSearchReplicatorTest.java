@@ -0,0 +1,210 @@
+/*
+ *
+ *  *  Copyright 2014 OrientDB LTD (info(at)orientdb.com)
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *       http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *  *
+ *  * For more information: http://www.orientdb.com
+ *
+ */
+package com.orientechnologies.es.plugin.es;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Luca Garulli
+ */
+public class OElasticSearchReplicatorTest {
+  private static final String DB = "test";
+
+  @Test
+  public void testRetryUntilAvailable() {
+    final OElasticSearchFakeClient es = new OElasticSearchFakeClient(new OElasticSearchFakeClient.Handler() {
+      @Override
+      public RestStatus onItem(final int attempt, final DocumentRequest request) {
+        if (attempt < 3)
+          throw new NoNodeAvailableException("down");
+        return null;
+      }
+    });
+
+    final OElasticSearchReplicator replicator = createReplicator(es, "{'replication':{'mode':'async','maxLatency':10}}");
+    for (int i = 0; i < 3; ++i)
+      replicator.replicate(createRequest(i));
+    waitForSent(replicator, 3);
+    replicator.close();
+
+    Assert.assertEquals(3, replicator.getSent());
+    Assert.assertEquals(0, replicator.getFailed());
+    Assert.assertEquals(0, replicator.getLost());
+    Assert.assertEquals(ids(0, 3), es.getReceived());
+  }
+
+  @Test
+  public void testFailureCountedOnce() throws InterruptedException {
+    final OElasticSearchFakeClient es = new OElasticSearchFakeClient(new OElasticSearchFakeClient.Handler() {
+      @Override
+      public RestStatus onItem(final int attempt, final DocumentRequest request) {
+        throw new NoNodeAvailableException("down");
+      }
+    });
+
+    final OElasticSearchReplicator replicator = createReplicator(es, "{'replication':{'mode':'async','maxLatency':10}}");
+    replicator.replicate(createRequest(0));
+    replicator.replicate(createRequest(1));
+    while (es.getAttempts() < 3)
+      Thread.sleep(10);
+    replicator.close();
+
+    Assert.assertEquals(0, replicator.getSent());
+    Assert.assertEquals(2, replicator.getFailed());
+    Assert.assertEquals(2, replicator.getLost());
+  }
+
+  @Test
+  public void testItemFailureNotRetried() {
+    final OElasticSearchFakeClient es = new OElasticSearchFakeClient(new OElasticSearchFakeClient.Handler() {
+      @Override
+      public RestStatus onItem(final int attempt, final DocumentRequest request) {
+        return request.id().equals("#9:1") ? RestStatus.BAD_REQUEST : null;
+      }
+    });
+
+    final OElasticSearchReplicator replicator = createReplicator(es, "{'replication':{'mode':'async','maxLatency':10}}");
+    for (int i = 0; i < 3; ++i)
+      replicator.replicate(createRequest(i));
+    replicator.close();
+
+    Assert.assertEquals(2, replicator.getSent());
+    Assert.assertEquals(1, replicator.getFailed());
+    Assert.assertEquals(1, es.getAttempts());
+  }
+
+  @Test
+  public void testSpillKeepsOrder() throws InterruptedException {
+    final OElasticSearchFakeClient es = new OElasticSearchFakeClient(new OElasticSearchFakeClient.Handler() {
+      @Override
+      public RestStatus onItem(final int attempt, final DocumentRequest request) {
+        try {
+          // SLOW ELASTIC SEARCH: THE QUEUE FILLS UP
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return null;
+      }
+    });
+
+    final OElasticSearchReplicator replicator = createReplicator(es,
+        "{'replication':{'mode':'async','maxLatency':10,'batchSize':5,'queueSize':2,'overflow':'spill'}}");
+    for (int i = 0; i < 200; ++i)
+      replicator.replicate(createRequest(i));
+    replicator.close();
+
+    Assert.assertTrue(replicator.getSpilled() > 0);
+    Assert.assertEquals(200, replicator.getSent());
+    Assert.assertEquals(ids(0, 200), es.getReceived());
+  }
+
+  @Test
+  public void testMissingDocumentRetried() {
+    final OElasticSearchFakeClient es = new OElasticSearchFakeClient(new OElasticSearchFakeClient.Handler() {
+      @Override
+      public RestStatus onItem(final int attempt, final DocumentRequest request) {
+        return request instanceof UpdateRequest ? RestStatus.NOT_FOUND : null;
+      }
+    });
+
+    final OElasticSearchReplicator replicator = createReplicator(es, "{'replication':{'mode':'async','maxLatency':10}}");
+    final AtomicInteger calls = new AtomicInteger();
+    replicator.setMissingDocumentHandler(new OElasticSearchReplicator.MissingDocumentHandler() {
+      @Override
+      public List<ActionRequest> onMissing(final List<UpdateRequest> updates) {
+        if (calls.incrementAndGet() < 3)
+          throw new IllegalStateException("Database not available");
+
+        final List<ActionRequest> requests = new ArrayList<ActionRequest>();
+        for (UpdateRequest update : updates)
+          requests.add(createRequest(Integer.parseInt(update.id().substring(3))));
+        return requests;
+      }
+    });
+
+    replicator.replicate(new UpdateRequest(DB, "V", "#9:0").doc("{\"position\":0}"));
+    replicator.replicate(createRequest(1));
+    waitForSent(replicator, 1);
+    replicator.close();
+
+    Assert.assertEquals(3, calls.get());
+    Assert.assertEquals(0, replicator.getFailed());
+    Assert.assertTrue(es.getReceived().contains("#9:0"));
+  }
+
+  @Test
+  public void testSyncFailureCountedOnce() {
+    final OElasticSearchFakeClient es = new OElasticSearchFakeClient(new OElasticSearchFakeClient.Handler() {
+      @Override
+      public RestStatus onItem(final int attempt, final DocumentRequest request) {
+        throw new NoNodeAvailableException("down");
+      }
+    });
+
+    final OElasticSearchReplicator replicator = createReplicator(es, "{'replication':{'mode':'sync'}}");
+    replicator.replicate(createRequest(0));
+    replicator.close();
+
+    Assert.assertEquals(1, replicator.getFailed());
+    Assert.assertEquals(0, replicator.getLost());
+  }
+
+  protected static OElasticSearchReplicator createReplicator(final OElasticSearchFakeClient es, final String configuration) {
+    final ODocument cfg = new ODocument().fromJSON(configuration.replace('\'', '"'));
+    cfg.field("bulk", new ODocument().fields("maxRetries", 0, "retryDelay", 1));
+    return new OElasticSearchReplicator(DB, null, new OElasticSearchBulkController(DB, es.getClient(), cfg), cfg,
+        new OElasticSearchMetrics(DB));
+  }
+
+  protected static IndexRequest createRequest(final int position) {
+    return new IndexRequest(DB, "V", "#9:" + position).source("{\"position\":" + position + "}");
+  }
+
+  protected static List<String> ids(final int from, final int to) {
+    final List<String> ids = new ArrayList<String>();
+    for (int i = from; i < to; ++i)
+      ids.add("#9:" + i);
+    return ids;
+  }
+
+  protected static void waitForSent(final OElasticSearchReplicator replicator, final long sent) {
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (replicator.getSent() < sent && System.currentTimeMillis() < deadline)
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+  }
+}